@@ -1,18 +1,315 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.Scanner;
+import java.util.zip.CRC32;
+
+// Fleet storage: one column per field, grown by doubling, with a name index and an availability bitset
+class FleetStore {
+    String[] names = new String[16];
+    String[] makes = new String[16];
+    String[] types = new String[16];
+    int count = 0;
+    HashMap<String, Integer> indexByName = new HashMap<>();
+    // Names are unique only as typed, so several bicycles can share a case-folded name
+    HashMap<String, int[]> indexByFoldedName = new HashMap<>();
+    BitSet available = new BitSet();
+    // One shared copy of each distinct make and type; a fleet has few of either
+    HashMap<String, String> attributeValues = new HashMap<>();
+
+    // Returns the new bicycle's index, or -1 if the name is taken
+    int add(String name, String make, String type) {
+        if (indexByName.putIfAbsent(name, count) != null) {
+            return -1;
+        }
+        if (count == names.length) {
+            names = Arrays.copyOf(names, count * 2);
+            makes = Arrays.copyOf(makes, count * 2);
+            types = Arrays.copyOf(types, count * 2);
+        }
+        names[count] = name;
+        makes[count] = attributeValues.computeIfAbsent(make, v -> v);
+        types[count] = attributeValues.computeIfAbsent(type, v -> v);
+        available.set(count); // Available by default
+        String folded = fold(name);
+        int[] same = indexByFoldedName.get(folded);
+        if (same == null) {
+            indexByFoldedName.put(folded, new int[] {count});
+        } else {
+            same = Arrays.copyOf(same, same.length + 1);
+            same[same.length - 1] = count;
+            indexByFoldedName.put(folded, same);
+        }
+        return count++;
+    }
+
+    // Index of the bicycle with this name, or -1
+    int find(String name) {
+        Integer index = indexByName.get(name);
+        return index == null ? -1 : index;
+    }
+
+    // Indexes of bicycles whose name equalsIgnoreCase this one, in the order they were added
+    int[] findIgnoreCase(String name) {
+        int[] same = indexByFoldedName.get(fold(name));
+        return same == null ? new int[0] : same;
+    }
+
+    // Two names fold to the same key exactly when String.equalsIgnoreCase says they are equal
+    static String fold(String name) {
+        StringBuilder folded = new StringBuilder(name.length());
+        name.codePoints().forEach(c -> folded.appendCodePoint(Character.toLowerCase(Character.toUpperCase(c))));
+        return folded.toString();
+    }
+
+    // "yes"/"no", as the menu has always shown it
+    String availability(int index) {
+        return available.get(index) ? "yes" : "no";
+    }
+}
+
+/*
+ * Keeps the menu's changes in <directory>/fleet.log. Every bicycle added, user registered, bicycle
+ * borrowed or returned is one record, [length][crc32][payload], synced before the menu moves on;
+ * at the speed anyone types, a sync per change is not noticeable. Startup replays the records up
+ * to the first torn or damaged one and cuts the file there. Exiting through the menu rewrites the
+ * log as just the current bicycles, users and loans, so the next start replays today's state and
+ * not the fleet's whole history.
+ */
+class FleetLog implements Closeable {
+    static final byte ADD = 1;
+    static final byte USER = 2;
+    static final byte BORROW = 3;
+    static final byte RETURN = 4;
+
+    private Path path;
+    private FileOutputStream appender;
+    private ByteArrayOutputStream payload = new ByteArrayOutputStream();
+    private DataOutputStream fields = new DataOutputStream(payload);
+    private CRC32 crc = new CRC32();
+
+    FleetLog(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        this.path = directory.resolve("fleet.log");
+    }
+
+    // Must run once before anything is logged; returns the number of records applied
+    long replay() throws IOException {
+        long records = 0;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer log = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int position = 0;
+            while (log.limit() - position >= 8) {
+                int length = log.getInt(position);
+                if (length <= 0 || length > log.limit() - position - 8) {
+                    break;
+                }
+                ByteBuffer record = log.slice(position + 8, length);
+                crc.reset();
+                crc.update(record.duplicate());
+                if ((int) crc.getValue() != log.getInt(position + 4)) {
+                    break;
+                }
+                apply(record);
+                position += 8 + length;
+                records++;
+            }
+            if (position < log.limit()) {
+                // Whatever follows was being written when the process died
+                channel.truncate(position);
+                channel.force(true);
+            }
+        }
+        appender = new FileOutputStream(path.toFile(), true);
+        return records;
+    }
+
+    void add(String name, String make, String type) {
+        try {
+            encodeAdd(name, make, type);
+            append();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    void user(int userIndex) {
+        try {
+            encodeUser(userIndex);
+            append();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    void borrow(int userIndex, int slot, int bikeIndex) {
+        try {
+            encodeLoan(BORROW, userIndex, slot);
+            fields.writeInt(bikeIndex);
+            append();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    void giveBack(int userIndex, int slot) {
+        try {
+            encodeLoan(RETURN, userIndex, slot);
+            append();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Swaps the log for a fresh one holding only the current state; a crash midway leaves the old one
+    void compact() throws IOException {
+        FleetStore bicycles = BicycleManagementSystem.bicycles;
+        Path temporary = path.resolveSibling("fleet.log.tmp");
+        try (FileOutputStream file = new FileOutputStream(temporary.toFile())) {
+            OutputStream out = new BufferedOutputStream(file, 1 << 16);
+            for (int i = 0; i < bicycles.count; i++) {
+                encodeAdd(bicycles.names[i], bicycles.makes[i], bicycles.types[i]);
+                writeFrame(out);
+            }
+            for (int i = 0; i < BicycleManagementSystem.userCount; i++) {
+                encodeUser(i);
+                writeFrame(out);
+                for (int slot = 0; slot < 2; slot++) {
+                    String bikeName = BicycleManagementSystem.userBorrowed[i][slot];
+                    if (bikeName != null) {
+                        encodeLoan(BORROW, i, slot);
+                        fields.writeInt(bicycles.find(bikeName));
+                        writeFrame(out);
+                    }
+                }
+            }
+            out.flush();
+            file.getFD().sync();
+        }
+        appender.close();
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        appender = new FileOutputStream(path.toFile(), true);
+    }
+
+    @Override
+    public void close() throws IOException {
+        appender.close();
+    }
+
+    private void encodeAdd(String name, String make, String type) throws IOException {
+        payload.reset();
+        fields.writeByte(ADD);
+        writeString(name);
+        writeString(make);
+        writeString(type);
+    }
+
+    private void encodeUser(int userIndex) throws IOException {
+        payload.reset();
+        fields.writeByte(USER);
+        writeString(BicycleManagementSystem.userNames[userIndex]);
+        writeString(BicycleManagementSystem.userIds[userIndex]);
+    }
+
+    // Loans name the user by ID, since user indexes are only stable within one run's replay order
+    private void encodeLoan(byte type, int userIndex, int slot) throws IOException {
+        payload.reset();
+        fields.writeByte(type);
+        writeString(BicycleManagementSystem.userIds[userIndex]);
+        fields.writeByte(slot);
+    }
+
+    private void writeString(String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        fields.writeInt(bytes.length);
+        fields.write(bytes);
+    }
+
+    private void append() throws IOException {
+        writeFrame(appender);
+        appender.getFD().sync();
+    }
+
+    private void writeFrame(OutputStream out) throws IOException {
+        byte[] bytes = payload.toByteArray();
+        crc.reset();
+        crc.update(bytes);
+        out.write(ByteBuffer.allocate(8).putInt(bytes.length).putInt((int) crc.getValue()).array());
+        out.write(bytes);
+    }
+
+    private static void apply(ByteBuffer record) {
+        byte type = record.get();
+        if (type == ADD) {
+            BicycleManagementSystem.bicycles.add(readString(record), readString(record), readString(record));
+        } else if (type == USER) {
+            String name = readString(record);
+            BicycleManagementSystem.registerUser(name, readString(record));
+        } else if (type == BORROW || type == RETURN) {
+            int userIndex = BicycleManagementSystem.findUser(readString(record));
+            int slot = record.get();
+            if (userIndex == -1 || slot < 0 || slot > 1) {
+                throw new IllegalStateException("Log refers to an unknown user or slot");
+            }
+            if (type == BORROW) {
+                BicycleManagementSystem.lend(userIndex, slot, record.getInt());
+            } else {
+                BicycleManagementSystem.giveBack(userIndex, slot);
+            }
+        }
+    }
+
+    private static String readString(ByteBuffer record) {
+        byte[] bytes = new byte[record.getInt()];
+        record.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
 
 public class BicycleManagementSystem {
 
-    // Multidimensional array for storing bicycles: [][0]=Name, [1]=Make, [2]=Type, [3]=Available ("yes"/"no")
-    static String[][] bicycles = new String[100][4]; // Maximum 100 bicycles
-    static int bicycleCount = 0;
+    // Bicycles: name, make, type and availability, no fixed limit
+    static FleetStore bicycles = new FleetStore();
 
-    // Arrays to store user information
-    static String[] userNames = new String[100];
-    static String[] userIds = new String[100];
-    static String[][] userBorrowed = new String[100][2]; // Max 2 borrowed bicycles per user
+    // Arrays to store user information, grown as users register
+    static String[] userNames = new String[16];
+    static String[] userIds = new String[16];
+    static String[][] userBorrowed = new String[16][2]; // Max 2 borrowed bicycles per user
     static int userCount = 0;
+    static HashMap<String, Integer> userIndexById = new HashMap<>();
 
-    public static void main(String[] args) {
+    // Null unless a data directory was given
+    static FleetLog log;
+
+    // Listings go through here and are flushed once each, rather than one console write per row
+    static Writer output = new BufferedWriter(new OutputStreamWriter(System.out, System.out.charset()), 1 << 16);
+
+    // Pass a data directory to keep the fleet and users across restarts
+    public static void main(String[] args) throws IOException {
+        if (args.length > 0) {
+            log = new FleetLog(Paths.get(args[0]));
+            long records = log.replay();
+            System.out.println("Recovered " + bicycles.count + " bicycles and " + userCount + " users from " + records + " records.");
+        }
         Scanner scanner = new Scanner(System.in);
         int choice;
 
@@ -43,6 +340,10 @@ public class BicycleManagementSystem {
         } while (choice != 0);
 
         scanner.close();
+        if (log != null) {
+            log.compact();
+            log.close();
+        }
     }
 
     // Function to add a bicycle
@@ -54,25 +355,31 @@ public class BicycleManagementSystem {
         System.out.print("Enter Type (e.g. Mountain, Road): ");
         String type = scanner.nextLine();
 
-        bicycles[bicycleCount][0] = name;
-        bicycles[bicycleCount][1] = make;
-        bicycles[bicycleCount][2] = type;
-        bicycles[bicycleCount][3] = "yes"; // Available by default
-        bicycleCount++;
+        if (bicycles.add(name, make, type) == -1) {
+            System.out.println("A bicycle with that name already exists.");
+            return;
+        }
+        if (log != null) {
+            log.add(name, make, type);
+        }
 
         System.out.println("Bicycle added successfully!");
     }
 
     // Function to view all bicycles
-    static void viewBicycles() {
+    static void viewBicycles() throws IOException {
         System.out.println("\n--- Available Bicycles ---");
-        for (int i = 0; i < bicycleCount; i++) {
-            System.out.println((i + 1) + ". " + bicycles[i][0] + " | " + bicycles[i][1] + " | " + bicycles[i][2] + " | Available: " + bicycles[i][3]);
+        for (int i = 0; i < bicycles.count; i++) {
+            output.append(Integer.toString(i + 1)).append(". ").append(bicycles.names[i])
+                    .append(" | ").append(bicycles.makes[i])
+                    .append(" | ").append(bicycles.types[i])
+                    .append(" | Available: ").append(bicycles.availability(i)).append('\n');
         }
+        output.flush();
     }
 
     // Function to borrow a bicycle
-    static void borrowBicycle(Scanner scanner) {
+    static void borrowBicycle(Scanner scanner) throws IOException {
         System.out.print("Enter User Name: ");
         String name = scanner.nextLine();
         System.out.print("Enter User ID: ");
@@ -81,10 +388,10 @@ public class BicycleManagementSystem {
         // Find or create user
         int userIndex = findUser(id);
         if (userIndex == -1) {
-            userIndex = userCount;
-            userNames[userCount] = name;
-            userIds[userCount] = id;
-            userCount++;
+            userIndex = registerUser(name, id);
+            if (log != null) {
+                log.user(userIndex);
+            }
         }
 
         // Check if user already borrowed 2 bicycles
@@ -98,16 +405,15 @@ public class BicycleManagementSystem {
         int bikeIndex = scanner.nextInt() - 1;
         scanner.nextLine(); // Clear buffer
 
-        if (bikeIndex < 0 || bikeIndex >= bicycleCount || bicycles[bikeIndex][3].equals("no")) {
+        if (bikeIndex < 0 || bikeIndex >= bicycles.count || !bicycles.available.get(bikeIndex)) {
             System.out.println("Invalid selection or bicycle not available.");
         } else {
             // Assign bicycle
-            if (userBorrowed[userIndex][0] == null)
-                userBorrowed[userIndex][0] = bicycles[bikeIndex][0];
-            else
-                userBorrowed[userIndex][1] = bicycles[bikeIndex][0];
-
-            bicycles[bikeIndex][3] = "no";
+            int slot = userBorrowed[userIndex][0] == null ? 0 : 1;
+            lend(userIndex, slot, bikeIndex);
+            if (log != null) {
+                log.borrow(userIndex, slot, bikeIndex);
+            }
             System.out.println("Bicycle borrowed successfully!");
         }
     }
@@ -134,17 +440,10 @@ public class BicycleManagementSystem {
         scanner.nextLine();
 
         if (bikeSlot >= 0 && bikeSlot < 2 && userBorrowed[userIndex][bikeSlot] != null) {
-            String bikeName = userBorrowed[userIndex][bikeSlot];
-
-            // Mark bicycle as available again
-            for (int i = 0; i < bicycleCount; i++) {
-                if (bicycles[i][0].equals(bikeName)) {
-                    bicycles[i][3] = "yes";
-                    break;
-                }
+            giveBack(userIndex, bikeSlot);
+            if (log != null) {
+                log.giveBack(userIndex, bikeSlot);
             }
-
-            userBorrowed[userIndex][bikeSlot] = null;
             System.out.println("Bicycle returned successfully!");
         } else {
             System.out.println("Invalid choice.");
@@ -152,17 +451,18 @@ public class BicycleManagementSystem {
     }
 
     // Function to display all borrowed bicycles
-    static void displayBorrowed() {
+    static void displayBorrowed() throws IOException {
         System.out.println("\n--- Borrowed Bicycles ---");
         for (int i = 0; i < userCount; i++) {
-            System.out.print(userNames[i] + " (" + userIds[i] + "): ");
+            output.append(userNames[i]).append(" (").append(userIds[i]).append("): ");
             for (int j = 0; j < 2; j++) {
                 if (userBorrowed[i][j] != null) {
-                    System.out.print(userBorrowed[i][j] + " ");
+                    output.append(userBorrowed[i][j]).append(' ');
                 }
             }
-            System.out.println();
+            output.append('\n');
         }
+        output.flush();
     }
 
     // Function to search for a bicycle by name
@@ -170,26 +470,49 @@ public class BicycleManagementSystem {
         System.out.print("Enter Bicycle Name to Search: ");
         String name = scanner.nextLine();
 
-        boolean found = false;
-        for (int i = 0; i < bicycleCount; i++) {
-            if (bicycles[i][0].equalsIgnoreCase(name)) {
-                System.out.println("Found: " + bicycles[i][0] + " | " + bicycles[i][1] + " | " + bicycles[i][2] + " | Available: " + bicycles[i][3]);
-                found = true;
-            }
+        int[] matches = bicycles.findIgnoreCase(name);
+        for (int i : matches) {
+            System.out.println("Found: " + bicycles.names[i] + " | " + bicycles.makes[i] + " | " + bicycles.types[i] + " | Available: " + bicycles.availability(i));
         }
 
-        if (!found) {
+        if (matches.length == 0) {
             System.out.println("Bicycle not found.");
         }
     }
 
-    // Helper method to find a user by ID
-    static int findUser(String id) {
-        for (int i = 0; i < userCount; i++) {
-            if (userIds[i].equals(id)) {
-                return i;
+    // Adds a user who is not registered yet and returns their index
+    static int registerUser(String name, String id) {
+        if (userCount == userIds.length) {
+            userNames = Arrays.copyOf(userNames, userCount * 2);
+            userIds = Arrays.copyOf(userIds, userCount * 2);
+            userBorrowed = Arrays.copyOf(userBorrowed, userCount * 2);
+            for (int i = userCount; i < userBorrowed.length; i++) {
+                userBorrowed[i] = new String[2];
             }
         }
-        return -1;
+        userNames[userCount] = name;
+        userIds[userCount] = id;
+        userIndexById.put(id, userCount);
+        return userCount++;
+    }
+
+    static void lend(int userIndex, int slot, int bikeIndex) {
+        userBorrowed[userIndex][slot] = bicycles.names[bikeIndex];
+        bicycles.available.clear(bikeIndex);
+    }
+
+    static void giveBack(int userIndex, int slot) {
+        // Mark bicycle as available again
+        int bikeIndex = bicycles.find(userBorrowed[userIndex][slot]);
+        if (bikeIndex != -1) {
+            bicycles.available.set(bikeIndex);
+        }
+        userBorrowed[userIndex][slot] = null;
+    }
+
+    // Helper method to find a user by ID
+    static int findUser(String id) {
+        Integer index = userIndexById.get(id);
+        return index == null ? -1 : index;
     }
 }
@@ -1,36 +1,1449 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
 
 class User {
     private String name;
     private String id;
-    private List<String> borrowedBicycles;
+    // Row of each borrowed bicycle, BorrowEngine.EMPTY when the slot is free
+    private AtomicIntegerArray borrowedRows;
 
     public User(String name, String id) {
         this.name = name;
         this.id = id;
-        this.borrowedBicycles = new ArrayList<>();
+        this.borrowedRows = new AtomicIntegerArray(BorrowEngine.MAX_BORROWED);
+        for (int slot = 0; slot < borrowedRows.length(); slot++) {
+            borrowedRows.set(slot, BorrowEngine.EMPTY);
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public AtomicIntegerArray getBorrowedRows() {
+        return borrowedRows;
+    }
+}
+
+/*
+ * Trigram index over name, make and type, updated as bicycles are added. Each field has its own
+ * posting lists. The start of the field and of every later word get extra trigrams padded with
+ * a marker, so prefixes of any length are indexed too, and the end of the field gets one so whole
+ * field matches are found directly.
+ *
+ * Results are ranked by where the term hits: the whole field, then the start of the field, then the
+ * start of a word, then anywhere, with name before make before type at each level; ties go to the
+ * older bicycle. Each of those levels is a tier with its own candidate rows, walked best tier first
+ * and in row order, so a limited query stops as soon as it has enough results.
+ */
+class FleetSearchIndex {
+    private static final char FIELD_START = '\0';
+    private static final char WORD_START = '\1';
+    private static final char FIELD_END = '\2';
+    private static final int FIELDS = 3;
+    // Whole field, start of field, start of word, anywhere
+    private static final int WHOLE = 4;
+    private static final int ANYWHERE = 1;
+
+    private Map<Long, Postings> postings = new HashMap<>();
+
+    public void add(int row, String name, String make, String type) {
+        String[] fields = {name, make, type};
+        for (int f = 0; f < FIELDS; f++) {
+            String field = fields[f];
+            char a = FIELD_START;
+            char b = FIELD_START;
+            for (int i = 0; i < field.length(); i++) {
+                char c = Character.toLowerCase(field.charAt(i));
+                if (i > 0 && !Character.isLetterOrDigit(field.charAt(i - 1))) {
+                    post(f, WORD_START, WORD_START, c, row);
+                    if (i + 1 < field.length()) {
+                        post(f, WORD_START, c, Character.toLowerCase(field.charAt(i + 1)), row);
+                    }
+                }
+                post(f, a, b, c, row);
+                a = b;
+                b = c;
+            }
+            post(f, a, b, FIELD_END, row);
+        }
+    }
+
+    private void post(int field, char a, char b, char c, int row) {
+        postings.computeIfAbsent(key(field, a, b, c), k -> new Postings()).add(row);
+    }
+
+    private static long key(int field, char a, char b, char c) {
+        return (long) field << 48 | (long) a << 32 | (long) b << 16 | c;
+    }
+
+    /*
+     * Rows matching the term, best first, at most limit of them. Prefix queries only match at the
+     * start of a field or of a word in it. Matches anywhere for terms shorter than three characters
+     * have no trigram to go on, so that last tier falls back to a scan.
+     */
+    public List<Integer> search(FleetStore fleet, String term, boolean prefixOnly, boolean availableOnly, int limit) {
+        String needle = term.toLowerCase();
+        List<Integer> results = new ArrayList<>();
+        if (needle.isEmpty()) {
+            // Everything matches an empty term, as it always has
+            for (int row = 0; row < fleet.size() && results.size() < limit; row++) {
+                if (!availableOnly || fleet.isAvailable(row)) {
+                    results.add(row);
+                }
+            }
+            return results;
+        }
+        for (int kind = WHOLE; kind >= (prefixOnly ? 2 : ANYWHERE) && results.size() < limit; kind--) {
+            for (int field = 0; field < FIELDS && results.size() < limit; field++) {
+                collectTier(fleet, needle, kind, field, availableOnly, limit, results);
+            }
+        }
+        return results;
+    }
+
+    // Adds, in row order, the rows whose best hit is at this kind in this field
+    private void collectTier(FleetStore fleet, String needle, int kind, int field, boolean availableOnly, int limit, List<Integer> results) {
+        int tierScore = score(kind, field);
+        if (kind == ANYWHERE && needle.length() < 3) {
+            for (int row = 0; row < fleet.size() && results.size() < limit; row++) {
+                accept(fleet, row, needle, tierScore, availableOnly, results);
+            }
+            return;
+        }
+        String pattern;
+        if (kind == WHOLE) {
+            pattern = "" + FIELD_START + FIELD_START + needle + FIELD_END;
+        } else if (kind == 3) {
+            pattern = "" + FIELD_START + FIELD_START + needle;
+        } else if (kind == 2) {
+            pattern = "" + WORD_START + WORD_START + needle;
+        } else {
+            pattern = needle;
+        }
+        List<Postings> lists = new ArrayList<>();
+        for (int i = 2; i < pattern.length(); i++) {
+            Postings list = postings.get(key(field, pattern.charAt(i - 2), pattern.charAt(i - 1), pattern.charAt(i)));
+            if (list == null) {
+                return;
+            }
+            lists.add(list);
+        }
+        lists.sort((x, y) -> Integer.compare(x.size, y.size));
+        Postings shortest = lists.get(0);
+        int[] cursors = new int[lists.size()];
+        candidates:
+        for (int i = 0; i < shortest.size && results.size() < limit; i++) {
+            int row = shortest.rows[i];
+            for (int l = 1; l < lists.size(); l++) {
+                cursors[l] = lists.get(l).seek(row, cursors[l]);
+                if (cursors[l] >= lists.get(l).size || lists.get(l).rows[cursors[l]] != row) {
+                    continue candidates;
+                }
+            }
+            accept(fleet, row, needle, tierScore, availableOnly, results);
+        }
+    }
+
+    /*
+     * Ranks every row without an index, for fleets too large to index. Make and type are scored
+     * once per dictionary entry rather than once per row, so only names are compared row by row.
+     */
+    static List<Integer> scan(FleetStore fleet, String term, boolean prefixOnly, boolean availableOnly, int limit) {
+        String needle = term.toLowerCase();
+        int[] makeScores = dictionaryScores(fleet.getMakes(), needle, 1);
+        int[] typeScores = dictionaryScores(fleet.getTypes(), needle, 2);
+        int lowest = needle.isEmpty() ? 0 : score(prefixOnly ? 2 : ANYWHERE, FIELDS - 1);
+        // Names are only decoded when their bytes might match; that check needs an ASCII needle
+        byte[] asciiNeedle = needle.chars().allMatch(c -> c < 0x80) ? needle.getBytes(StandardCharsets.US_ASCII) : null;
+        byte[] scratch = new byte[FleetStore.MAX_NAME_BYTES];
+        // One bucket per score, each in row order
+        List<List<Integer>> buckets = new ArrayList<>();
+        for (int score = 0; score <= score(WHOLE, 0); score++) {
+            buckets.add(new ArrayList<>());
+        }
+        int size = fleet.size();
+        for (int row = 0; row < size; row++) {
+            if (availableOnly && !fleet.isAvailable(row)) {
+                continue;
+            }
+            int best = Math.max(makeScores[fleet.getMakeCode(row)], typeScores[fleet.getTypeCode(row)]);
+            if (!needle.isEmpty() && (asciiNeedle == null || fleet.nameMayContain(row, asciiNeedle, scratch))) {
+                best = Math.max(best, score(fleet.getName(row), needle, 0));
+            }
+            if (best >= lowest) {
+                buckets.get(best).add(row);
+            }
+        }
+        List<Integer> results = new ArrayList<>();
+        for (int score = buckets.size() - 1; score >= 0 && results.size() < limit; score--) {
+            List<Integer> bucket = buckets.get(score);
+            results.addAll(bucket.subList(0, Math.min(bucket.size(), limit - results.size())));
+        }
+        return results;
+    }
+
+    private static int[] dictionaryScores(StringDictionary dictionary, String needle, int field) {
+        int[] scores = new int[dictionary.size()];
+        for (int code = 0; code < scores.length; code++) {
+            scores[code] = needle.isEmpty() ? 0 : score(dictionary.decode(code), needle, field);
+        }
+        return scores;
+    }
+
+    // A row belongs to the tier of its best hit only, so each result is emitted exactly once
+    private static void accept(FleetStore fleet, int row, String needle, int tierScore, boolean availableOnly, List<Integer> results) {
+        if (availableOnly && !fleet.isAvailable(row)) {
+            return;
+        }
+        int best = Math.max(score(fleet.getName(row), needle, 0),
+                Math.max(score(fleet.getMake(row), needle, 1), score(fleet.getType(row), needle, 2)));
+        if (best == tierScore) {
+            results.add(row);
+        }
+    }
+
+    // Higher is better; kind dominates, then name over make over type
+    private static int score(int kind, int field) {
+        return kind * FIELDS + (FIELDS - 1 - field);
+    }
+
+    private static int score(String value, String needle, int field) {
+        int best = 0;
+        for (int at = 0; at + needle.length() <= value.length(); at++) {
+            if (!value.regionMatches(true, at, needle, 0, needle.length())) {
+                continue;
+            }
+            int kind;
+            if (at == 0) {
+                kind = value.length() == needle.length() ? WHOLE : 3;
+            } else if (!Character.isLetterOrDigit(value.charAt(at - 1))) {
+                kind = 2;
+            } else {
+                kind = ANYWHERE;
+            }
+            best = Math.max(best, score(kind, field));
+            if (kind >= 3) {
+                break;
+            }
+        }
+        return best;
+    }
+
+    // Rows containing one trigram, ascending because rows are only ever appended
+    private static class Postings {
+        private int[] rows = new int[4];
+        private int size;
+
+        void add(int row) {
+            if (size > 0 && rows[size - 1] == row) {
+                return;
+            }
+            if (size == rows.length) {
+                rows = Arrays.copyOf(rows, size * 2);
+            }
+            rows[size++] = row;
+        }
+
+        // First position at or after from holding a row >= the given one, galloping then bisecting
+        int seek(int row, int from) {
+            int step = 1;
+            int low = from;
+            int high = from;
+            while (high < size && rows[high] < row) {
+                low = high + 1;
+                high += step;
+                step <<= 1;
+            }
+            high = Math.min(high, size);
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (rows[mid] < row) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+}
+
+// Distinct values of a low-cardinality column, each stored once and referred to by its code
+class StringDictionary {
+    private volatile String[] values = new String[16];
+    private int size;
+    private Map<String, Integer> codes = new HashMap<>();
+
+    // Only called by the fleet's single writer
+    public int encode(String value) {
+        Integer code = codes.get(value);
+        if (code != null) {
+            return code;
+        }
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size * 2);
+        }
+        values[size] = value;
+        codes.put(value, size);
+        return size++;
+    }
+
+    public String decode(int code) {
+        return values[code];
+    }
+
+    public int size() {
+        return size;
+    }
+}
+
+/*
+ * Append-only storage in fixed-size chunks, either on the Java heap or in direct buffers outside
+ * it, addressed by a long offset. Chunks are never moved or copied, so a reader can use any
+ * address that was published to it without a lock.
+ */
+class ChunkedBuffer {
+    private final int chunkBits;
+    private final boolean offHeap;
+    private volatile ByteBuffer[] chunks = new ByteBuffer[0];
+
+    ChunkedBuffer(int chunkBits, boolean offHeap) {
+        this.chunkBits = chunkBits;
+        this.offHeap = offHeap;
+    }
+
+    int getChunkSize() {
+        return 1 << chunkBits;
+    }
+
+    long getCapacity() {
+        return (long) chunks.length << chunkBits;
+    }
+
+    // Allocates chunks until the buffer holds at least end bytes
+    void ensureCapacity(long end) {
+        while (getCapacity() < end) {
+            ByteBuffer[] grown = Arrays.copyOf(chunks, chunks.length + 1);
+            grown[chunks.length] = offHeap ? ByteBuffer.allocateDirect(getChunkSize()) : ByteBuffer.allocate(getChunkSize());
+            chunks = grown;
+        }
+    }
+
+    long getLong(long address) {
+        return chunk(address).getLong(offset(address));
+    }
+
+    void putLong(long address, long value) {
+        chunk(address).putLong(offset(address), value);
+    }
+
+    int getInt(long address) {
+        return chunk(address).getInt(offset(address));
+    }
+
+    void putInt(long address, int value) {
+        chunk(address).putInt(offset(address), value);
+    }
+
+    // Reads a [length][UTF-8 bytes] string; strings never straddle two chunks
+    byte[] getBytes(long address) {
+        ByteBuffer chunk = chunk(address);
+        int at = offset(address);
+        byte[] bytes = new byte[chunk.getShort(at) & 0xffff];
+        chunk.get(at + 2, bytes);
+        return bytes;
+    }
+
+    boolean bytesEqual(long address, byte[] bytes) {
+        ByteBuffer chunk = chunk(address);
+        int at = offset(address);
+        if ((chunk.getShort(at) & 0xffff) != bytes.length) {
+            return false;
+        }
+        return chunk.slice(at + 2, bytes.length).equals(ByteBuffer.wrap(bytes));
+    }
+
+    /*
+     * False only if the string at the address cannot contain the needle, given as lower-case ASCII
+     * bytes. Strings with any non-ASCII byte always pass, since case folding may map them onto ASCII.
+     * The scratch array must hold the longest string.
+     */
+    boolean mayContain(long address, byte[] needle, byte[] scratch) {
+        ByteBuffer chunk = chunk(address);
+        int at = offset(address);
+        int length = chunk.getShort(at) & 0xffff;
+        if (length < needle.length) {
+            return false;
+        }
+        chunk.get(at + 2, scratch, 0, length);
+        for (int i = 0; i < length; i++) {
+            if (scratch[i] < 0) {
+                return true;
+            }
+        }
+        byte first = needle[0];
+        for (int start = 0; start + needle.length <= length; start++) {
+            if (lowerAscii(scratch[start]) != first) {
+                continue;
+            }
+            int matched = 1;
+            while (matched < needle.length && lowerAscii(scratch[start + matched]) == needle[matched]) {
+                matched++;
+            }
+            if (matched == needle.length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static byte lowerAscii(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    // Writes a [length][bytes] string at or after the address and returns where it went
+    long putBytes(long address, byte[] bytes) {
+        if (offset(address) + 2 + bytes.length > getChunkSize()) {
+            address = ((address >>> chunkBits) + 1) << chunkBits;
+        }
+        if (bytes.length > 0xffff) {
+            throw new IllegalArgumentException("String of " + bytes.length + " bytes does not fit a two-byte length");
+        }
+        ensureCapacity(address + 2 + bytes.length);
+        ByteBuffer chunk = chunk(address);
+        chunk.putShort(offset(address), (short) bytes.length);
+        chunk.put(offset(address) + 2, bytes);
+        return address;
+    }
+
+    private ByteBuffer chunk(long address) {
+        return chunks[(int) (address >>> chunkBits)];
+    }
+
+    private int offset(long address) {
+        return (int) address & ((1 << chunkBits) - 1);
+    }
+}
+
+/*
+ * Bicycles in insertion order, stored by column. Each row is a fixed 16-byte record of the name's
+ * address and the make and type codes; make and type are dictionary encoded, and names are UTF-8
+ * bytes in an arena found through an open-addressing table of rows. Availability is a bitset. With
+ * offHeap the records, names and name table all live in direct buffers, so the heap holds little
+ * more than the availability bits and the search index, and scans walk contiguous memory. The
+ * trigram search index costs far more than the columns; without it search scans the columns.
+ *
+ * Safe to share between threads. Adds and searches go through a read-write lock, since the search
+ * index is only built for one writer. Everything else is lock free:
+ * - a row is published through the volatile size only after its record, name and table entry are
+ *   written, and readers check the size before looking anything up
+ * - availability lives in fixed-size chunks of atomic words that are never copied, so growing the
+ *   fleet cannot lose a concurrent borrow or return
+ */
+class FleetStore {
+    // 1024 words of 64 bikes each per chunk
+    private static final int CHUNK_BITS = 16;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int RECORD_SIZE = 16;
+    private static final int MAKE_OFFSET = 8;
+    private static final int TYPE_OFFSET = 12;
+    static final int MAX_NAME_BYTES = 0xffff;
+
+    private final boolean offHeap;
+    private ChunkedBuffer records;
+    private ChunkedBuffer names;
+    private long namesEnd;
+    private StringDictionary makes = new StringDictionary();
+    private StringDictionary types = new StringDictionary();
+    // Row + 1 per slot, 0 when empty; replaced whole when it grows so readers never see a rehash
+    private volatile IntBuffer nameTable;
+    private volatile int size;
+    private volatile AtomicLongArray[] availableChunks = new AtomicLongArray[0];
+    private LongAdder availableCount = new LongAdder();
+    private FleetSearchIndex searchIndex;
+    private ReadWriteLock indexLock = new ReentrantReadWriteLock();
+
+    public FleetStore() {
+        this(false, true);
+    }
+
+    public FleetStore(boolean offHeap, boolean indexed) {
+        this.offHeap = offHeap;
+        this.records = new ChunkedBuffer(20, offHeap);
+        this.names = new ChunkedBuffer(20, offHeap);
+        this.nameTable = allocateTable(1024);
+        this.searchIndex = indexed ? new FleetSearchIndex() : null;
+    }
+
+    // Names and the other text fields are journaled with a two-byte length, so callers check them here first
+    static boolean fits(String value) {
+        return value.length() <= MAX_NAME_BYTES / 3 || value.getBytes(StandardCharsets.UTF_8).length <= MAX_NAME_BYTES;
+    }
+
+    // Returns the new row, or -1 if a bicycle with that name already exists
+    public int add(String name, String make, String type) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        if (nameBytes.length > MAX_NAME_BYTES) {
+            throw new IllegalArgumentException("Bicycle name too long");
+        }
+        if (!fits(make) || !fits(type)) {
+            throw new IllegalArgumentException("Bicycle make or type too long");
+        }
+        indexLock.writeLock().lock();
+        try {
+            int row = size;
+            if (find(nameBytes, row) >= 0) {
+                return -1;
+            }
+            long nameAddress = names.putBytes(namesEnd, nameBytes);
+            namesEnd = nameAddress + 2 + nameBytes.length;
+            long record = (long) row * RECORD_SIZE;
+            records.ensureCapacity(record + RECORD_SIZE);
+            records.putLong(record, nameAddress);
+            records.putInt(record + MAKE_OFFSET, makes.encode(make));
+            records.putInt(record + TYPE_OFFSET, types.encode(type));
+            if ((row + 1) * 2L > nameTable.capacity()) {
+                rehash(row);
+            }
+            insert(nameTable, hash(nameBytes), row);
+            if (row >>> CHUNK_BITS == availableChunks.length) {
+                AtomicLongArray[] chunks = Arrays.copyOf(availableChunks, availableChunks.length + 1);
+                chunks[chunks.length - 1] = new AtomicLongArray(CHUNK_SIZE / 64);
+                availableChunks = chunks;
+            }
+            words(row).getAndUpdate(wordIndex(row), word -> word | bit(row));
+            availableCount.increment();
+            if (searchIndex != null) {
+                searchIndex.add(row, name, make, type);
+            }
+            size = row + 1;
+            return row;
+        } finally {
+            indexLock.writeLock().unlock();
+        }
+    }
+
+    // Ranked rows whose name, make or type contains the term, ignoring case
+    public List<Integer> search(String term, boolean prefixOnly, boolean availableOnly, int limit) {
+        indexLock.readLock().lock();
+        try {
+            if (searchIndex == null) {
+                return FleetSearchIndex.scan(this, term, prefixOnly, availableOnly, limit);
+            }
+            return searchIndex.search(this, term, prefixOnly, availableOnly, limit);
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isOffHeap() {
+        return offHeap;
+    }
+
+    // Row of the named bicycle, or -1
+    public int find(String name) {
+        int published = size;
+        return find(name.getBytes(StandardCharsets.UTF_8), published);
+    }
+
+    public String getName(int row) {
+        return new String(names.getBytes(records.getLong((long) row * RECORD_SIZE)), StandardCharsets.UTF_8);
+    }
+
+    public String getMake(int row) {
+        return makes.decode(getMakeCode(row));
+    }
+
+    public String getType(int row) {
+        return types.decode(getTypeCode(row));
+    }
+
+    // See ChunkedBuffer.mayContain
+    boolean nameMayContain(int row, byte[] needle, byte[] scratch) {
+        return names.mayContain(records.getLong((long) row * RECORD_SIZE), needle, scratch);
+    }
+
+    int getMakeCode(int row) {
+        return records.getInt((long) row * RECORD_SIZE + MAKE_OFFSET);
+    }
+
+    int getTypeCode(int row) {
+        return records.getInt((long) row * RECORD_SIZE + TYPE_OFFSET);
+    }
+
+    StringDictionary getMakes() {
+        return makes;
+    }
+
+    StringDictionary getTypes() {
+        return types;
+    }
+
+    public boolean isAvailable(int row) {
+        return (words(row).get(wordIndex(row)) & bit(row)) != 0;
+    }
+
+    public int getAvailableCount() {
+        return (int) availableCount.sum();
+    }
+
+    // First available row at or after from, or -1; skips borrowed bikes 64 at a time
+    public int nextAvailable(int from) {
+        int end = size;
+        AtomicLongArray[] chunks = availableChunks;
+        for (int row = from; row < end; row = (row | 63) + 1) {
+            long word = chunks[row >>> CHUNK_BITS].get(wordIndex(row)) & -bit(row);
+            if (word != 0) {
+                int found = (row & ~63) + Long.numberOfTrailingZeros(word);
+                return found < end ? found : -1;
+            }
+        }
+        return -1;
+    }
+
+    // False if the bicycle was already out; of two racing borrowers exactly one gets true
+    public boolean markBorrowed(int row) {
+        AtomicLongArray words = words(row);
+        int index = wordIndex(row);
+        long bit = bit(row);
+        long word = words.get(index);
+        while ((word & bit) != 0) {
+            long witness = words.compareAndExchange(index, word, word & ~bit);
+            if (witness == word) {
+                availableCount.decrement();
+                return true;
+            }
+            word = witness;
+        }
+        return false;
+    }
+
+    // False if the bicycle was not out
+    public boolean markReturned(int row) {
+        AtomicLongArray words = words(row);
+        int index = wordIndex(row);
+        long bit = bit(row);
+        long word = words.get(index);
+        while ((word & bit) == 0) {
+            long witness = words.compareAndExchange(index, word, word | bit);
+            if (witness == word) {
+                availableCount.increment();
+                return true;
+            }
+            word = witness;
+        }
+        return false;
+    }
+
+    public String getAvailability(int row) {
+        return isAvailable(row) ? "Available" : "Unavailable";
+    }
+
+    // Rows at or past the published size are still being written and are treated as missing
+    private int find(byte[] nameBytes, int published) {
+        IntBuffer table = nameTable;
+        int mask = table.capacity() - 1;
+        for (int slot = hash(nameBytes) & mask; ; slot = (slot + 1) & mask) {
+            int entry = table.get(slot);
+            if (entry == 0) {
+                return -1;
+            }
+            int row = entry - 1;
+            if (row < published && names.bytesEqual(records.getLong((long) row * RECORD_SIZE), nameBytes)) {
+                return row;
+            }
+        }
+    }
+
+    private void rehash(int rows) {
+        IntBuffer table = allocateTable(nameTable.capacity() * 2);
+        for (int row = 0; row < rows; row++) {
+            insert(table, hash(names.getBytes(records.getLong((long) row * RECORD_SIZE))), row);
+        }
+        nameTable = table;
+    }
+
+    private static void insert(IntBuffer table, int hash, int row) {
+        int mask = table.capacity() - 1;
+        int slot = hash & mask;
+        while (table.get(slot) != 0) {
+            slot = (slot + 1) & mask;
+        }
+        table.put(slot, row + 1);
+    }
+
+    private IntBuffer allocateTable(int slots) {
+        return offHeap ? ByteBuffer.allocateDirect(slots * 4).asIntBuffer() : IntBuffer.allocate(slots);
+    }
+
+    private static int hash(byte[] bytes) {
+        int hash = 0;
+        for (byte b : bytes) {
+            hash = hash * 31 + b;
+        }
+        hash *= 0x9e3779b9;
+        return hash ^ hash >>> 16;
+    }
+
+    private AtomicLongArray words(int row) {
+        return availableChunks[row >>> CHUNK_BITS];
+    }
+
+    private static int wordIndex(int row) {
+        return (row & (CHUNK_SIZE - 1)) >>> 6;
+    }
+
+    private static long bit(int row) {
+        return 1L << row;
+    }
+}
+
+/*
+ * Borrowing and returning for many clients at once, without a global lock. A bike changes hands
+ * with a single compare-and-set on its availability bit, so two clients can never both get it.
+ * Each user has two borrowing slots; a borrow first claims a free slot and only then the bike, and
+ * a return first clears the slot and only then frees the bike, so nobody ever holds more than two
+ * and nobody can return the same bike twice.
+ *
+ * Once a journal is attached, every change is applied under the journal's lock instead, so that
+ * the log records changes in the order they happened.
+ */
+class BorrowEngine {
+    public static final int MAX_BORROWED = 2;
+    static final int EMPTY = -1;
+    // A slot claimed by a borrow that has not got its bike yet
+    private static final int PENDING = -2;
+
+    public enum BorrowResult { BORROWED, NOT_FOUND, UNAVAILABLE, LIMIT_REACHED }
+
+    public enum ReturnResult { RETURNED, NOT_BORROWED }
+
+    private final FleetStore fleet;
+    private final Map<String, User> users = new ConcurrentHashMap<>();
+    private volatile FleetJournal journal;
+    private ScheduledExecutorService checkpoints;
+    // Set when a scheduled checkpoint fails, until stopCheckpoints reports it
+    private volatile Exception checkpointFailure;
+
+    public BorrowEngine(FleetStore fleet) {
+        this.fleet = fleet;
+    }
+
+    public FleetStore getFleet() {
+        return fleet;
+    }
+
+    // Returns the new row, or -1 if a bicycle with that name already exists
+    public int addBicycle(String name, String make, String type) {
+        FleetJournal current = journal;
+        if (current != null) {
+            return current.recordAdd(name, make, type, () -> fleet.add(name, make, type));
+        }
+        return fleet.add(name, make, type);
+    }
+
+    public User findUser(String id) {
+        return users.get(id);
+    }
+
+    // The user already registered under that ID, or null if this one was added
+    public User addUserIfAbsent(User user) {
+        if (!FleetStore.fits(user.getId()) || !FleetStore.fits(user.getName())) {
+            throw new IllegalArgumentException("User ID or name too long");
+        }
+        FleetJournal current = journal;
+        if (current != null) {
+            return current.recordUser(user, () -> users.putIfAbsent(user.getId(), user));
+        }
+        return users.putIfAbsent(user.getId(), user);
+    }
+
+    Collection<User> getUsers() {
+        return users.values();
+    }
+
+    public BorrowResult borrow(User user, String bikeName) {
+        int row = fleet.find(bikeName);
+        return row < 0 ? BorrowResult.NOT_FOUND : borrow(user, row);
+    }
+
+    public BorrowResult borrow(User user, int row) {
+        FleetJournal current = journal;
+        if (current != null) {
+            return current.recordBorrow(user, row, () -> tryBorrow(user, row));
+        }
+        return tryBorrow(user, row);
+    }
+
+    private BorrowResult tryBorrow(User user, int row) {
+        AtomicIntegerArray slots = user.getBorrowedRows();
+        int slot = claimSlot(slots);
+        if (slot < 0) {
+            return BorrowResult.LIMIT_REACHED;
+        }
+        if (!fleet.markBorrowed(row)) {
+            slots.set(slot, EMPTY);
+            return BorrowResult.UNAVAILABLE;
+        }
+        slots.set(slot, row);
+        return BorrowResult.BORROWED;
+    }
+
+    public ReturnResult giveBack(User user, String bikeName) {
+        int row = fleet.find(bikeName);
+        return row < 0 ? ReturnResult.NOT_BORROWED : giveBack(user, row);
+    }
+
+    public ReturnResult giveBack(User user, int row) {
+        FleetJournal current = journal;
+        if (current != null) {
+            return current.recordReturn(user, row, () -> tryGiveBack(user, row));
+        }
+        return tryGiveBack(user, row);
+    }
+
+    private ReturnResult tryGiveBack(User user, int row) {
+        AtomicIntegerArray slots = user.getBorrowedRows();
+        for (int slot = 0; slot < slots.length(); slot++) {
+            // Whoever clears the slot owns the return; the bike is only freed after that
+            if (slots.compareAndSet(slot, row, EMPTY)) {
+                fleet.markReturned(row);
+                return ReturnResult.RETURNED;
+            }
+        }
+        return ReturnResult.NOT_BORROWED;
+    }
+
+    // Names of the bikes the user holds right now
+    public List<String> borrowedBy(User user) {
+        AtomicIntegerArray slots = user.getBorrowedRows();
+        List<String> names = new ArrayList<>(slots.length());
+        for (int slot = 0; slot < slots.length(); slot++) {
+            int row = slots.get(slot);
+            if (row >= 0) {
+                names.add(fleet.getName(row));
+            }
+        }
+        return names;
+    }
+
+    // Only a hint for prompting; borrow() is what enforces the limit
+    public boolean isAtLimit(User user) {
+        AtomicIntegerArray slots = user.getBorrowedRows();
+        for (int slot = 0; slot < slots.length(); slot++) {
+            if (slots.get(slot) == EMPTY) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Rebuilds the fleet and users from the journal's snapshot and log, then journals every later
+     * change. Call on a fresh engine before anything else; returns the number of records replayed.
+     */
+    public long recoverFrom(FleetJournal journal) throws IOException {
+        long records = journal.replay(this);
+        this.journal = journal;
+        return records;
+    }
+
+    public void checkpoint() throws IOException {
+        FleetJournal current = journal;
+        if (current == null) {
+            throw new IllegalStateException("No journal attached");
+        }
+        current.checkpoint(this);
+    }
+
+    public synchronized void startCheckpoints(Duration period) {
+        stopCheckpoints();
+        checkpoints = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "fleet-journal-checkpoint");
+            thread.setDaemon(true);
+            return thread;
+        });
+        checkpoints.scheduleWithFixedDelay(() -> {
+            try {
+                checkpoint();
+            } catch (IOException | RuntimeException e) {
+                checkpointFailure = e;
+                // Throwing ends the periodic schedule; later runs would only fail the same way
+                throw new CompletionException(e);
+            }
+        }, period.toMillis(), period.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    // Also reports, once, a scheduled checkpoint that failed and so stopped the schedule
+    public synchronized void stopCheckpoints() {
+        if (checkpoints != null) {
+            checkpoints.shutdownNow();
+            checkpoints = null;
+        }
+        Exception failure = checkpointFailure;
+        if (failure != null) {
+            checkpointFailure = null;
+            throw new IllegalStateException("Scheduled checkpoint failed; no checkpoint has been taken since", failure);
+        }
+    }
+
+    // The failure that stopped scheduled checkpoints, or null while they are running or were never started
+    public Exception getCheckpointFailure() {
+        return checkpointFailure;
+    }
+
+    private static int claimSlot(AtomicIntegerArray slots) {
+        for (int slot = 0; slot < slots.length(); slot++) {
+            if (slots.get(slot) == EMPTY && slots.compareAndSet(slot, EMPTY, PENDING)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+}
+
+/*
+ * Durable record of the BorrowEngine: bicycles added, users registered, bikes borrowed and returned.
+ * Records are [length][crc32][payload], copied into a memory-mapped journal.bin with the length
+ * stored last; recovery stops at the first record whose length is zero or whose checksum fails,
+ * which is where a crash mid-append leaves off. Nothing is synced per record. The commit thread
+ * forces the mapping once per interval, so a change may be lost if the machine (not just the
+ * process) fails within one interval of it.
+ *
+ * The engine's change and its record happen under the journal lock, which keeps replay order equal
+ * to the order users saw. snapshot.bin holds the fleet and loans as of a checkpoint, in the same
+ * record format, stamped with the epoch the journal restarted under; the journal only applies on
+ * top of a snapshot with its own epoch.
+ */
+class FleetJournal implements Closeable {
+    private static final int MAGIC = 0x424b4a31;
+    private static final int HEADER_SIZE = 12;
+    private static final int INITIAL_CAPACITY = 1 << 24;
+    private static final byte ADD = 1;
+    private static final byte USER = 2;
+    private static final byte BORROW = 3;
+    private static final byte RETURN = 4;
+
+    private Path journalPath;
+    private Path snapshotPath;
+    private FileChannel channel;
+    private MappedByteBuffer mapped;
+    private long epoch;
+    private int written;
+    private int forced;
+    private ReentrantLock lock = new ReentrantLock();
+    private ByteBuffer scratch = ByteBuffer.allocate(4096);
+    private CRC32 crc = new CRC32();
+    private ScheduledExecutorService committer;
+
+    public FleetJournal(Path directory, Duration commitInterval) throws IOException {
+        Files.createDirectories(directory);
+        this.journalPath = directory.resolve("journal.bin");
+        this.snapshotPath = directory.resolve("snapshot.bin");
+        this.channel = FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(INITIAL_CAPACITY, channel.size()));
+        if (mapped.getInt(0) != MAGIC) {
+            writeHeader(0);
+        }
+        this.epoch = mapped.getLong(4);
+        this.written = HEADER_SIZE;
+        this.forced = HEADER_SIZE;
+
+        committer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "fleet-journal-commit");
+            thread.setDaemon(true);
+            return thread;
+        });
+        committer.scheduleWithFixedDelay(this::sync, commitInterval.toMillis(), commitInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /*
+     * Applies the snapshot and then the journal tail to an empty engine and returns the number of
+     * records replayed. Later appends continue after the last intact record.
+     */
+    public long replay(BorrowEngine engine) throws IOException {
+        lock.lock();
+        try {
+            long records = 0;
+            // No checkpoint has run yet, so the journal is still on epoch 0
+            long snapshotEpoch = 0;
+            if (Files.exists(snapshotPath)) {
+                try (FileChannel snapshot = FileChannel.open(snapshotPath, StandardOpenOption.READ)) {
+                    ByteBuffer buffer = snapshot.map(FileChannel.MapMode.READ_ONLY, 0, snapshot.size());
+                    if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+                        throw new IOException("Not a fleet snapshot: " + snapshotPath);
+                    }
+                    snapshotEpoch = buffer.getLong(4);
+                    records += readRecords(buffer, engine)[1];
+                }
+            }
+            if (snapshotEpoch == epoch) {
+                long[] tail = readRecords(mapped, engine);
+                written = (int) tail[0];
+                records += tail[1];
+            } else if (snapshotEpoch > epoch) {
+                // Crashed between renaming the snapshot into place and restarting the journal, which holds
+                // nothing newer; it was not scanned, so every byte of the mapping is cleared
+                resetJournal(snapshotEpoch, mapped.capacity());
+            } else {
+                // Replaying this journal onto an older snapshot, or none, would skip whatever the missing checkpoint held
+                throw new IOException("Fleet journal is at epoch " + epoch + " but the snapshot is at " + snapshotEpoch);
+            }
+            forced = written;
+            if (mapped.getInt(written) != 0) {
+                // Bytes of an unfinished record; zero them before new appends land in front of them
+                zeroRange(written, mapped.capacity());
+                mapped.force(written, mapped.capacity() - written);
+            }
+            return records;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+     * Each record* method encodes its record and makes room for it before applying the change, so
+     * a field too long to encode or a full journal fails the call with nothing changed in memory.
+     */
+
+    // Returns the new row, or -1 if nothing was added
+    public int recordAdd(String name, String make, String type, IntSupplier add) {
+        lock.lock();
+        try {
+            ByteBuffer payload = reserve(encodeAdd(name, make, type));
+            int row = add.getAsInt();
+            if (row >= 0) {
+                append(payload);
+            }
+            return row;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Returns the user already registered under the ID, or null once this one is registered and logged
+    public User recordUser(User user, Supplier<User> register) {
+        lock.lock();
+        try {
+            ByteBuffer payload = reserve(encodeUser(user));
+            User existing = register.get();
+            if (existing == null) {
+                append(payload);
+            }
+            return existing;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public BorrowEngine.BorrowResult recordBorrow(User user, int row, Supplier<BorrowEngine.BorrowResult> borrow) {
+        lock.lock();
+        try {
+            ByteBuffer payload = reserve(encodeLoan(BORROW, user, row));
+            BorrowEngine.BorrowResult result = borrow.get();
+            if (result == BorrowEngine.BorrowResult.BORROWED) {
+                append(payload);
+            }
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public BorrowEngine.ReturnResult recordReturn(User user, int row, Supplier<BorrowEngine.ReturnResult> giveBack) {
+        lock.lock();
+        try {
+            ByteBuffer payload = reserve(encodeLoan(RETURN, user, row));
+            BorrowEngine.ReturnResult result = giveBack.get();
+            if (result == BorrowEngine.ReturnResult.RETURNED) {
+                append(payload);
+            }
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+     * Writes a snapshot of the engine and restarts the journal from empty under the next epoch.
+     * Changes wait for the lock meanwhile, so the snapshot is consistent without copying anything.
+     */
+    public void checkpoint(BorrowEngine engine) throws IOException {
+        lock.lock();
+        try {
+            long nextEpoch = epoch + 1;
+            FleetStore fleet = engine.getFleet();
+            Path temporary = snapshotPath.resolveSibling("snapshot.tmp");
+            try (FileChannel snapshot = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putLong(nextEpoch);
+                header.flip();
+                snapshot.write(header);
+                BufferedChannelWriter out = new BufferedChannelWriter(snapshot);
+                for (int row = 0; row < fleet.size(); row++) {
+                    out.write(frame(encodeAdd(fleet.getName(row), fleet.getMake(row), fleet.getType(row))));
+                }
+                for (User user : engine.getUsers()) {
+                    out.write(frame(encodeUser(user)));
+                    AtomicIntegerArray slots = user.getBorrowedRows();
+                    for (int slot = 0; slot < slots.length(); slot++) {
+                        if (slots.get(slot) >= 0) {
+                            out.write(frame(encodeLoan(BORROW, user, slots.get(slot))));
+                        }
+                    }
+                }
+                out.flush();
+                snapshot.force(true);
+            }
+            Files.move(temporary, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            resetJournal(nextEpoch, written);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Bytes appended since the last checkpoint
+    public int getJournalSize() {
+        lock.lock();
+        try {
+            return written - HEADER_SIZE;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Runs on the commit thread and at close; appends carry on while the mapping is being forced
+    public void sync() {
+        MappedByteBuffer buffer;
+        int end;
+        long syncedEpoch;
+        lock.lock();
+        try {
+            if (written <= forced) {
+                return;
+            }
+            buffer = mapped;
+            end = written;
+            syncedEpoch = epoch;
+        } finally {
+            lock.unlock();
+        }
+        buffer.force(0, end);
+        lock.lock();
+        try {
+            if (epoch == syncedEpoch && end > forced) {
+                forced = end;
+            }
+        } finally {
+            lock.unlock();
+        }
     }
 
-    public String getName() {
-        return name;
+    @Override
+    public void close() throws IOException {
+        committer.shutdownNow();
+        sync();
+        channel.close();
     }
 
-    public String getId() {
-        return id;
+    private ByteBuffer encodeAdd(String name, String make, String type) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        byte[] makeBytes = make.getBytes(StandardCharsets.UTF_8);
+        byte[] typeBytes = type.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = payload(1 + 6 + nameBytes.length + makeBytes.length + typeBytes.length);
+        payload.put(ADD);
+        putString(payload, nameBytes);
+        putString(payload, makeBytes);
+        putString(payload, typeBytes);
+        return payload;
+    }
+
+    private ByteBuffer encodeUser(User user) {
+        byte[] id = user.getId().getBytes(StandardCharsets.UTF_8);
+        byte[] name = user.getName().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = payload(1 + 4 + id.length + name.length);
+        payload.put(USER);
+        putString(payload, id);
+        putString(payload, name);
+        return payload;
+    }
+
+    private ByteBuffer encodeLoan(byte type, User user, int row) {
+        byte[] id = user.getId().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = payload(1 + 2 + id.length + 4);
+        payload.put(type);
+        putString(payload, id);
+        payload.putInt(row);
+        return payload;
+    }
+
+    private static void putString(ByteBuffer payload, byte[] bytes) {
+        if (bytes.length > FleetStore.MAX_NAME_BYTES) {
+            throw new IllegalArgumentException("String of " + bytes.length + " bytes is too long to journal");
+        }
+        payload.putShort((short) bytes.length).put(bytes);
+    }
+
+    private ByteBuffer payload(int size) {
+        if (scratch.capacity() < size) {
+            scratch = ByteBuffer.allocate(Math.max(size, scratch.capacity() * 2));
+        }
+        scratch.clear();
+        return scratch;
+    }
+
+    private ByteBuffer frame(ByteBuffer payload) {
+        payload.flip();
+        crc.reset();
+        crc.update(payload.duplicate());
+        ByteBuffer framed = ByteBuffer.allocate(8 + payload.remaining());
+        framed.putInt(payload.remaining()).putInt((int) crc.getValue()).put(payload);
+        framed.flip();
+        return framed;
+    }
+
+    // Grows the mapping so that append(payload) cannot fail, and hands the payload back
+    private ByteBuffer reserve(ByteBuffer payload) {
+        ensureCapacity(written + 8 + payload.position() + 4);
+        return payload;
+    }
+
+    private void append(ByteBuffer payload) {
+        payload.flip();
+        int length = payload.remaining();
+        ensureCapacity(written + 8 + length + 4);
+        crc.reset();
+        crc.update(payload.duplicate());
+        mapped.put(written + 8, payload, 0, length);
+        mapped.putInt(written + 4, (int) crc.getValue());
+        mapped.putInt(written, length);
+        written += 8 + length;
+    }
+
+    private void ensureCapacity(long needed) {
+        if (needed <= mapped.capacity()) {
+            return;
+        }
+        long capacity = mapped.capacity();
+        while (capacity < needed) {
+            capacity *= 2;
+        }
+        if (capacity > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Journal full; take a checkpoint");
+        }
+        try {
+            mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // {end of the valid records, how many were applied}; a missing or foreign header counts as empty
+    private long[] readRecords(ByteBuffer buffer, BorrowEngine engine) {
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            return new long[] {HEADER_SIZE, 0};
+        }
+        int position = HEADER_SIZE;
+        long records = 0;
+        while (position + 8 <= buffer.limit()) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + 8 + length > buffer.limit()) {
+                break;
+            }
+            ByteBuffer record = buffer.slice(position + 8, length);
+            crc.reset();
+            crc.update(record.duplicate());
+            if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+                break;
+            }
+            decode(record, engine);
+            position += 8 + length;
+            records++;
+        }
+        return new long[] {position, records};
+    }
+
+    private static void decode(ByteBuffer record, BorrowEngine engine) {
+        byte type = record.get();
+        if (type == ADD) {
+            engine.getFleet().add(readString(record), readString(record), readString(record));
+        } else if (type == USER) {
+            String id = readString(record);
+            engine.addUserIfAbsent(new User(readString(record), id));
+        } else if (type == BORROW || type == RETURN) {
+            User user = engine.findUser(readString(record));
+            int row = record.getInt();
+            if (user == null || row >= engine.getFleet().size()) {
+                throw new IllegalStateException("Journal refers to an unknown user or bicycle");
+            }
+            if (type == BORROW) {
+                engine.borrow(user, row);
+            } else {
+                engine.giveBack(user, row);
+            }
+        }
+    }
+
+    private static String readString(ByteBuffer record) {
+        byte[] bytes = new byte[record.getShort() & 0xffff];
+        record.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void writeHeader(long headerEpoch) {
+        mapped.putInt(0, MAGIC);
+        mapped.putLong(4, headerEpoch);
+    }
+
+    // The zeros must be durable before the header that says the journal is empty under the new epoch
+    private void resetJournal(long nextEpoch, int end) {
+        written = HEADER_SIZE;
+        zeroRange(HEADER_SIZE, end);
+        mapped.force(HEADER_SIZE, Math.max(end - HEADER_SIZE, 0));
+        writeHeader(nextEpoch);
+        mapped.force(0, HEADER_SIZE);
+        epoch = nextEpoch;
+        forced = HEADER_SIZE;
+    }
+
+    private void zeroRange(int from, int to) {
+        byte[] zeros = new byte[Math.min(Math.max(to - from, 0), 1 << 16)];
+        for (int position = from; position < to; position += zeros.length) {
+            mapped.put(position, zeros, 0, Math.min(zeros.length, to - position));
+        }
     }
 
-    public List<String> getBorrowedBicycles() {
-        return borrowedBicycles;
+    private static class BufferedChannelWriter {
+        private FileChannel channel;
+        private ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+
+        BufferedChannelWriter(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        void write(ByteBuffer record) throws IOException {
+            if (record.remaining() > buffer.remaining()) {
+                flush();
+            }
+            if (record.remaining() > buffer.capacity()) {
+                while (record.hasRemaining()) {
+                    channel.write(record);
+                }
+                return;
+            }
+            buffer.put(record);
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
     }
 }
 
 public class BicycleManagementSystem {
-    private static String[][] bicycles = new String[0][4];
-    private static List<User> users = new ArrayList<>();
+    private static final int BATCH_GROUP = 1024;
+
+    private static FleetStore bicycles = new FleetStore();
+    private static BorrowEngine engine = new BorrowEngine(bicycles);
+    // Listings go through one reused buffer on top of System.out and are flushed once per listing
+    private static Writer output = new BufferedWriter(new OutputStreamWriter(System.out, System.out.charset()), 1 << 16);
 
-    public static void main(String[] args) {
+    /*
+     * Pass a data directory to keep the fleet and users across restarts. With --batch <file>, or
+     * --batch - for stdin, runs BicycleProtocol commands instead of the menu.
+     */
+    public static void main(String[] args) throws IOException {
+        String data = null;
+        String batch = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--batch") && i + 1 < args.length) {
+                batch = args[++i];
+            } else {
+                data = args[i];
+            }
+        }
+        FleetJournal journal = null;
+        if (data != null) {
+            journal = new FleetJournal(Paths.get(data), Duration.ofMillis(50));
+            long records = engine.recoverFrom(journal);
+            // Batch output is the reply stream, so keep status off it
+            (batch == null ? System.out : System.err).println("Recovered " + bicycles.size() + " bicycles from " + records + " records.");
+            engine.startCheckpoints(Duration.ofMinutes(5));
+        }
+        if (batch != null) {
+            long failed = runBatch(batch);
+            if (journal != null) {
+                try {
+                    engine.stopCheckpoints();
+                } finally {
+                    journal.close();
+                }
+            }
+            if (failed > 0) {
+                System.exit(1);
+            }
+            return;
+        }
         Scanner scanner = new Scanner(System.in);
         while (true) {
             System.out.println("\nMenu:");
@@ -73,6 +1486,13 @@ public class BicycleManagementSystem {
                 case 7:
                     System.out.println("Exiting...");
                     scanner.close();
+                    if (journal != null) {
+                        try {
+                            engine.stopCheckpoints();
+                        } finally {
+                            journal.close();
+                        }
+                    }
                     return;
                 default:
                     System.out.println("Invalid choice. Please try again.");
@@ -88,31 +1508,82 @@ public class BicycleManagementSystem {
         System.out.println("Enter bicycle type:");
         String type = scanner.nextLine().trim();
 
-        String[][] newBicycles = new String[bicycles.length + 1][4];
-        System.arraycopy(bicycles, 0, newBicycles, 0, bicycles.length);
-        newBicycles[newBicycles.length - 1] = new String[]{name, make, type, "Available"};
-        bicycles = newBicycles;
+        if (!FleetStore.fits(name) || !FleetStore.fits(make) || !FleetStore.fits(type)) {
+            System.out.println("Bicycle details are too long.");
+            return;
+        }
+        if (engine.addBicycle(name, make, type) < 0) {
+            System.out.println("A bicycle with that name already exists.");
+            return;
+        }
         System.out.println("Bicycle added successfully.");
     }
 
-    private static void viewBicycles() {
-        if (bicycles.length == 0) {
+    private static void viewBicycles() throws IOException {
+        if (bicycles.size() == 0) {
             System.out.println("No bicycles available.");
             return;
         }
         System.out.println("Bicycles:");
-        for (String[] bike : bicycles) {
-            System.out.println("Name: " + bike[0] + ", Make: " + bike[1] + ", Type: " + bike[2] + ", Availability: " + bike[3]);
+        for (int row = 0; row < bicycles.size(); row++) {
+            appendBicycle(row);
         }
+        flushOutput();
     }
 
-    private static User findUserById(String userId) {
-        for (User user : users) {
-            if (user.getId().equals(userId)) {
-                return user;
+    /*
+     * Runs BicycleProtocol commands from a file, or from stdin for "-", one per line, and writes each
+     * reply to stdout. Blank lines and lines starting with # are skipped. Replies are collected for
+     * a group of commands and handed to the buffered writer together, so a long script runs at the
+     * speed of the disk rather than of the console. Returns the number of commands that failed.
+     */
+    private static long runBatch(String source) throws IOException {
+        BicycleProtocol protocol = new BicycleProtocol(engine);
+        StringBuilder group = new StringBuilder(1 << 16);
+        long commands = 0;
+        long failed = 0;
+        long started = System.nanoTime();
+        try (BufferedReader in = source.equals("-")
+                ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8), 1 << 16)
+                : Files.newBufferedReader(Paths.get(source), StandardCharsets.UTF_8)) {
+            int grouped = 0;
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.isBlank() || line.startsWith("#")) {
+                    continue;
+                }
+                int replyStart = group.length();
+                protocol.execute(line, group);
+                commands++;
+                if (group.charAt(replyStart) == 'E') {
+                    failed++;
+                }
+                if (++grouped == BATCH_GROUP || group.length() >= 1 << 16) {
+                    output.append(group);
+                    group.setLength(0);
+                    grouped = 0;
+                }
             }
         }
-        return null;
+        output.append(group);
+        flushOutput();
+        System.err.printf("Ran %d commands, %d failed, in %d ms%n", commands, failed, (System.nanoTime() - started) / 1_000_000);
+        return failed;
+    }
+
+    private static void appendBicycle(int row) throws IOException {
+        output.append("Name: ").append(bicycles.getName(row))
+                .append(", Make: ").append(bicycles.getMake(row))
+                .append(", Type: ").append(bicycles.getType(row))
+                .append(", Availability: ").append(bicycles.getAvailability(row)).append('\n');
+    }
+
+    private static void flushOutput() throws IOException {
+        output.flush();
+    }
+
+    private static User findUserById(String userId) {
+        return engine.findUser(userId);
     }
 
     private static void borrowBicycle(Scanner scanner) {
@@ -120,6 +1591,10 @@ public class BicycleManagementSystem {
         String userId = scanner.nextLine().trim();
         System.out.println("Enter your name:");
         String userName = scanner.nextLine().trim();
+        if (!FleetStore.fits(userId) || !FleetStore.fits(userName)) {
+            System.out.println("User ID or name is too long.");
+            return;
+        }
 
         User user = findUserById(userId);
         if (user != null) {
@@ -129,20 +1604,18 @@ public class BicycleManagementSystem {
             }
         } else {
             user = new User(userName, userId);
-            users.add(user);
+            engine.addUserIfAbsent(user);
             System.out.println("New user created.");
         }
 
-        if (user.getBorrowedBicycles().size() >= 2) {
+        if (engine.isAtLimit(user)) {
             System.out.println("You have already borrowed the maximum of 2 bicycles.");
             return;
         }
 
-        List<String> availableBikes = new ArrayList<>();
-        for (String[] bike : bicycles) {
-            if ("Available".equals(bike[3])) {
-                availableBikes.add(bike[0]);
-            }
+        List<String> availableBikes = new ArrayList<>(bicycles.getAvailableCount());
+        for (int row = bicycles.nextAvailable(0); row >= 0; row = bicycles.nextAvailable(row + 1)) {
+            availableBikes.add(bicycles.getName(row));
         }
 
         if (availableBikes.isEmpty()) {
@@ -154,19 +1627,15 @@ public class BicycleManagementSystem {
         System.out.println("Enter the name of the bicycle you want to borrow:");
         String bikeName = scanner.nextLine().trim();
 
-        boolean found = false;
-        for (String[] bike : bicycles) {
-            if (bike[0].equals(bikeName) && "Available".equals(bike[3])) {
-                bike[3] = "Unavailable";
-                user.getBorrowedBicycles().add(bikeName);
+        switch (engine.borrow(user, bikeName)) {
+            case BORROWED:
                 System.out.println("Bicycle borrowed successfully.");
-                found = true;
                 break;
-            }
-        }
-
-        if (!found) {
-            System.out.println("Bicycle not found or not available.");
+            case LIMIT_REACHED:
+                System.out.println("You have already borrowed the maximum of 2 bicycles.");
+                break;
+            default:
+                System.out.println("Bicycle not found or not available.");
         }
     }
 
@@ -180,7 +1649,7 @@ public class BicycleManagementSystem {
             return;
         }
 
-        List<String> borrowed = user.getBorrowedBicycles();
+        List<String> borrowed = engine.borrowedBy(user);
         if (borrowed.isEmpty()) {
             System.out.println("You have no bicycles to return.");
             return;
@@ -190,29 +1659,14 @@ public class BicycleManagementSystem {
         System.out.println("Enter the name of the bicycle to return:");
         String bikeName = scanner.nextLine().trim();
 
-        if (!borrowed.contains(bikeName)) {
-            System.out.println("Bicycle not found in your borrowed list.");
-            return;
-        }
-
-        boolean found = false;
-        for (String[] bike : bicycles) {
-            if (bike[0].equals(bikeName) && "Unavailable".equals(bike[3])) {
-                bike[3] = "Available";
-                found = true;
-                break;
-            }
-        }
-
-        if (found) {
-            borrowed.remove(bikeName);
+        if (engine.giveBack(user, bikeName) == BorrowEngine.ReturnResult.RETURNED) {
             System.out.println("Bicycle returned successfully.");
         } else {
-            System.out.println("Bicycle not found or already available.");
+            System.out.println("Bicycle not found in your borrowed list.");
         }
     }
 
-    private static void displayBorrowed(Scanner scanner) {
+    private static void displayBorrowed(Scanner scanner) throws IOException {
         System.out.println("Enter your user ID:");
         String userId = scanner.nextLine().trim();
 
@@ -222,37 +1676,767 @@ public class BicycleManagementSystem {
             return;
         }
 
-        List<String> borrowed = user.getBorrowedBicycles();
+        List<String> borrowed = engine.borrowedBy(user);
         if (borrowed.isEmpty()) {
             System.out.println("You have no borrowed bicycles.");
         } else {
             System.out.println("Borrowed bicycles:");
             for (String bikeName : borrowed) {
-                System.out.println(bikeName);
+                output.append(bikeName).append('\n');
             }
+            flushOutput();
         }
     }
 
-    private static void searchBicycle(Scanner scanner) {
+    private static void searchBicycle(Scanner scanner) throws IOException {
         System.out.println("Enter search term:");
         String term = scanner.nextLine().trim().toLowerCase();
 
-        List<String[]> results = new ArrayList<>();
-        for (String[] bike : bicycles) {
-            if (bike[0].toLowerCase().contains(term) ||
-                bike[1].toLowerCase().contains(term) ||
-                bike[2].toLowerCase().contains(term)) {
-                results.add(bike);
-            }
-        }
+        List<Integer> results = bicycles.search(term, false, false, Integer.MAX_VALUE);
 
         if (results.isEmpty()) {
             System.out.println("No bicycles found.");
         } else {
             System.out.println("Search results:");
-            for (String[] bike : results) {
-                System.out.println("Name: " + bike[0] + ", Make: " + bike[1] + ", Type: " + bike[2] + ", Availability: " + bike[3]);
+            for (int row : results) {
+                appendBicycle(row);
+            }
+            flushOutput();
+        }
+    }
+}
+
+/*
+ * The line protocol spoken by BicycleServer. A request is one line with its fields separated by
+ * tabs, so names may contain spaces:
+ *
+ *   ADD name make type         BORROW userId userName bike     BORROWED userId
+ *   VIEW                       RETURN userId bike              SEARCH term [limit]
+ *
+ * Every request gets exactly one reply, in request order, so clients may pipeline. A reply is "OK",
+ * "ERR <reason>", or for VIEW, BORROWED and SEARCH "OK <n>" followed by n lines. Bicycle lines are
+ * name, make, type and availability, tab separated.
+ */
+class BicycleProtocol {
+    private final BorrowEngine engine;
+
+    public BicycleProtocol(BorrowEngine engine) {
+        this.engine = engine;
+    }
+
+    public void execute(String line, Appendable out) throws IOException {
+        String[] fields = line.split("\t", -1);
+        FleetStore fleet = engine.getFleet();
+        switch (fields[0].toUpperCase()) {
+            case "ADD":
+                if (fields.length != 4) {
+                    error(out, "bad-request");
+                } else if (!fits(fields)) {
+                    error(out, "too-long");
+                } else if (engine.addBicycle(fields[1].trim(), fields[2].trim(), fields[3].trim()) < 0) {
+                    error(out, "exists");
+                } else {
+                    ok(out);
+                }
+                break;
+            case "VIEW":
+                int size = fleet.size();
+                out.append("OK ").append(Integer.toString(size)).append('\n');
+                for (int row = 0; row < size; row++) {
+                    appendBicycle(fleet, row, out);
+                }
+                break;
+            case "BORROW":
+                if (fields.length != 4) {
+                    error(out, "bad-request");
+                    break;
+                }
+                if (!fits(fields)) {
+                    error(out, "too-long");
+                    break;
+                }
+                User user = engine.findUser(fields[1].trim());
+                if (user == null) {
+                    User created = new User(fields[2].trim(), fields[1].trim());
+                    User existing = engine.addUserIfAbsent(created);
+                    user = existing == null ? created : existing;
+                }
+                if (!user.getName().equals(fields[2].trim())) {
+                    error(out, "name-mismatch");
+                    break;
+                }
+                switch (engine.borrow(user, fields[3].trim())) {
+                    case BORROWED: ok(out); break;
+                    case NOT_FOUND: error(out, "not-found"); break;
+                    case UNAVAILABLE: error(out, "unavailable"); break;
+                    default: error(out, "limit");
+                }
+                break;
+            case "RETURN":
+                if (fields.length != 3) {
+                    error(out, "bad-request");
+                    break;
+                }
+                User returner = engine.findUser(fields[1].trim());
+                if (returner == null) {
+                    error(out, "no-user");
+                } else if (engine.giveBack(returner, fields[2].trim()) != BorrowEngine.ReturnResult.RETURNED) {
+                    error(out, "not-borrowed");
+                } else {
+                    ok(out);
+                }
+                break;
+            case "BORROWED":
+                if (fields.length != 2) {
+                    error(out, "bad-request");
+                    break;
+                }
+                User holder = engine.findUser(fields[1].trim());
+                if (holder == null) {
+                    error(out, "no-user");
+                    break;
+                }
+                List<String> borrowed = engine.borrowedBy(holder);
+                out.append("OK ").append(Integer.toString(borrowed.size())).append('\n');
+                for (String bikeName : borrowed) {
+                    out.append(bikeName).append('\n');
+                }
+                break;
+            case "SEARCH":
+                if (fields.length < 2 || fields.length > 3) {
+                    error(out, "bad-request");
+                    break;
+                }
+                int limit;
+                try {
+                    limit = fields.length == 3 ? Integer.parseInt(fields[2].trim()) : Integer.MAX_VALUE;
+                } catch (NumberFormatException e) {
+                    error(out, "bad-request");
+                    break;
+                }
+                List<Integer> results = fleet.search(fields[1].trim(), false, false, limit);
+                out.append("OK ").append(Integer.toString(results.size())).append('\n');
+                for (int row : results) {
+                    appendBicycle(fleet, row, out);
+                }
+                break;
+            default:
+                error(out, "unknown-command");
+        }
+    }
+
+    private static boolean fits(String[] fields) {
+        for (String field : fields) {
+            if (!FleetStore.fits(field)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void appendBicycle(FleetStore fleet, int row, Appendable out) throws IOException {
+        out.append(fleet.getName(row)).append('\t')
+                .append(fleet.getMake(row)).append('\t')
+                .append(fleet.getType(row)).append('\t')
+                .append(fleet.getAvailability(row)).append('\n');
+    }
+
+    private static void ok(Appendable out) throws IOException {
+        out.append("OK\n");
+    }
+
+    private static void error(Appendable out, String reason) throws IOException {
+        out.append("ERR ").append(reason).append('\n');
+    }
+}
+
+/*
+ * Serves BicycleProtocol over TCP with one virtual thread per connection, so thousands of mostly
+ * idle clients cost little more than their buffers. Replies are buffered and only flushed once
+ * the client has no more requests waiting, so a pipelined batch goes back in one write. Listens
+ * on the loopback interface only.
+ *
+ * Run with: java BicycleServer [port=7070] [data=<directory>] [offheap=false] [index=true]
+ */
+class BicycleServer implements Closeable {
+    private static final int BACKLOG = 4096;
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final BicycleProtocol protocol;
+    private final ServerSocket serverSocket;
+    private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+    private final LongAdder requests = new LongAdder();
+    private volatile Thread acceptor;
+
+    public BicycleServer(BorrowEngine engine, int port) throws IOException {
+        this.protocol = new BicycleProtocol(engine);
+        this.serverSocket = new ServerSocket(port, BACKLOG, InetAddress.getLoopbackAddress());
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = 7070;
+        String data = null;
+        boolean offHeap = false;
+        boolean indexed = true;
+        for (String arg : args) {
+            String[] pair = arg.split("=", 2);
+            switch (pair[0]) {
+                case "port": port = Integer.parseInt(pair[1]); break;
+                case "data": data = pair[1]; break;
+                case "offheap": offHeap = Boolean.parseBoolean(pair[1]); break;
+                case "index": indexed = Boolean.parseBoolean(pair[1]); break;
+                default: throw new IllegalArgumentException("Unknown parameter " + pair[0]);
+            }
+        }
+        BorrowEngine engine = new BorrowEngine(new FleetStore(offHeap, indexed));
+        if (data != null) {
+            long records = engine.recoverFrom(new FleetJournal(Paths.get(data), Duration.ofMillis(10)));
+            System.out.println("Recovered " + engine.getFleet().size() + " bicycles from " + records + " records");
+            engine.startCheckpoints(Duration.ofMinutes(5));
+        }
+        BicycleServer server = new BicycleServer(engine, port);
+        server.start();
+        System.out.println("Listening on port " + server.getPort());
+    }
+
+    public void start() {
+        acceptor = new Thread(this::acceptLoop, "bicycle-acceptor");
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public int getConnectionCount() {
+        return connections.size();
+    }
+
+    public long getRequestCount() {
+        return requests.sum();
+    }
+
+    private void acceptLoop() {
+        Thread.Builder connectionThreads = Thread.ofVirtual().name("bicycle-connection-", 0);
+        while (!serverSocket.isClosed()) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    System.err.println("Accept failed: " + e.getMessage());
+                }
+                continue;
+            }
+            connections.add(socket);
+            connectionThreads.start(() -> serve(socket));
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8), BUFFER_SIZE);
+            Writer out = new BufferedWriter(
+                    new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), BUFFER_SIZE);
+            String line;
+            while ((line = in.readLine()) != null) {
+                protocol.execute(line, out);
+                requests.increment();
+                if (!in.ready()) {
+                    out.flush();
+                }
+            }
+            out.flush();
+        } catch (IOException e) {
+            // The client went away; nothing to answer
+        } finally {
+            connections.remove(socket);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        for (Socket socket : connections) {
+            socket.close();
+        }
+        Thread thread = acceptor;
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
+
+/*
+ * Load test for BicycleServer. Seeds the fleet, then opens the given number of connections, each
+ * sending pipelined batches of borrow, return, search and borrowed-list requests until time runs
+ * out. Reports requests per second and batch round-trip latency. Without a port it runs against a
+ * server in this JVM and afterwards checks that every bike is either available or held by exactly
+ * one user.
+ *
+ * Run with: java BicycleLoadTest [port=0] [clients=1000] [seconds=10] [pipeline=16] [bikes=10000]
+ *           [users=1000] [mix=borrow:return:search:borrowed]
+ */
+class BicycleLoadTest {
+    private String host = "localhost";
+    private int port;
+    private int clients = 1000;
+    private int seconds = 10;
+    private int pipeline = 16;
+    private int bikes = 10000;
+    private int users = 1000;
+    private int[] mix = {40, 40, 15, 5};
+
+    private LongAdder requests = new LongAdder();
+    private Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+    private List<long[]> latencies = Collections.synchronizedList(new ArrayList<>());
+    private AtomicReference<String> failure = new AtomicReference<>();
+
+    public static void main(String[] args) throws Exception {
+        BicycleLoadTest test = new BicycleLoadTest();
+        for (String arg : args) {
+            String[] pair = arg.split("=", 2);
+            switch (pair[0]) {
+                case "host": test.host = pair[1]; break;
+                case "port": test.port = Integer.parseInt(pair[1]); break;
+                case "clients": test.clients = Integer.parseInt(pair[1]); break;
+                case "seconds": test.seconds = Integer.parseInt(pair[1]); break;
+                case "pipeline": test.pipeline = Integer.parseInt(pair[1]); break;
+                case "bikes": test.bikes = Integer.parseInt(pair[1]); break;
+                case "users": test.users = Integer.parseInt(pair[1]); break;
+                case "mix":
+                    String[] weights = pair[1].split(":");
+                    for (int i = 0; i < test.mix.length; i++) {
+                        test.mix[i] = Integer.parseInt(weights[i]);
+                    }
+                    break;
+                default: throw new IllegalArgumentException("Unknown parameter " + pair[0]);
+            }
+        }
+        System.out.printf("clients=%d seconds=%d pipeline=%d bikes=%d users=%d mix=%d:%d:%d:%d%n",
+                test.clients, test.seconds, test.pipeline, test.bikes, test.users,
+                test.mix[0], test.mix[1], test.mix[2], test.mix[3]);
+        if (!test.run()) {
+            System.exit(1);
+        }
+    }
+
+    public boolean run() throws Exception {
+        BorrowEngine engine = null;
+        BicycleServer server = null;
+        if (port == 0) {
+            engine = new BorrowEngine(new FleetStore());
+            server = new BicycleServer(engine, 0);
+            server.start();
+            port = server.getPort();
+        }
+        try {
+            seed();
+            long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+            List<Thread> threads = new ArrayList<>(clients);
+            for (int c = 0; c < clients; c++) {
+                int client = c;
+                threads.add(Thread.ofVirtual().name("load-client-" + c).start(() -> drive(client, deadline)));
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } finally {
+            if (server != null) {
+                server.close();
+            }
+        }
+        report();
+        if (engine != null) {
+            check(engine);
+        }
+        String failed = failure.get();
+        if (failed != null) {
+            System.out.println("FAILED: " + failed);
+            return false;
+        }
+        return true;
+    }
+
+    // Adds the fleet over one connection, pipelined; names left over from an earlier run are fine
+    private void seed() throws IOException {
+        try (Socket socket = new Socket(host, port)) {
+            Writer out = writer(socket);
+            BufferedReader in = reader(socket);
+            for (int first = 0; first < bikes; first += 1000) {
+                int last = Math.min(bikes, first + 1000);
+                for (int i = first; i < last; i++) {
+                    out.write("ADD\tbike-" + i + "\tmake-" + i % 50 + "\t" + (i % 3 == 0 ? "Road" : i % 3 == 1 ? "Mountain" : "Hybrid") + "\n");
+                }
+                out.flush();
+                for (int i = first; i < last; i++) {
+                    in.readLine();
+                }
+            }
+        }
+    }
+
+    private void drive(int client, long deadline) {
+        String userId = "user-" + client % users;
+        String userName = "name-" + client % users;
+        List<String> held = new ArrayList<>();
+        // What each request in the batch was, so borrowed bikes can be remembered
+        String[] borrowing = new String[pipeline];
+        long[] samples = new long[1024];
+        int sampleCount = 0;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int total = mix[0] + mix[1] + mix[2] + mix[3];
+        try (Socket socket = new Socket(host, port)) {
+            socket.setTcpNoDelay(true);
+            Writer out = writer(socket);
+            BufferedReader in = reader(socket);
+            while (System.nanoTime() < deadline) {
+                long start = System.nanoTime();
+                for (int i = 0; i < pipeline; i++) {
+                    borrowing[i] = null;
+                    int pick = random.nextInt(total);
+                    if (pick < mix[0]) {
+                        borrowing[i] = "bike-" + random.nextInt(bikes);
+                        out.write("BORROW\t" + userId + "\t" + userName + "\t" + borrowing[i] + "\n");
+                    } else if (pick < mix[0] + mix[1] && !held.isEmpty()) {
+                        out.write("RETURN\t" + userId + "\t" + held.remove(held.size() - 1) + "\n");
+                    } else if (pick < mix[0] + mix[1] + mix[2]) {
+                        out.write("SEARCH\tmake-" + random.nextInt(50) + "\t10\n");
+                    } else {
+                        out.write("BORROWED\t" + userId + "\n");
+                    }
+                }
+                out.flush();
+                for (int i = 0; i < pipeline; i++) {
+                    String reply = in.readLine();
+                    if (reply == null) {
+                        throw new EOFException("Server closed the connection");
+                    }
+                    if (reply.startsWith("OK ")) {
+                        int lines = Integer.parseInt(reply.substring(3));
+                        for (int j = 0; j < lines; j++) {
+                            in.readLine();
+                        }
+                    } else if (reply.equals("OK")) {
+                        if (borrowing[i] != null) {
+                            held.add(borrowing[i]);
+                        }
+                    } else {
+                        errors.computeIfAbsent(reply, r -> new LongAdder()).increment();
+                    }
+                }
+                if (sampleCount == samples.length) {
+                    samples = Arrays.copyOf(samples, sampleCount * 2);
+                }
+                samples[sampleCount++] = System.nanoTime() - start;
+                requests.add(pipeline);
+            }
+        } catch (IOException | RuntimeException e) {
+            failure.compareAndSet(null, "client " + client + ": " + e);
+        }
+        latencies.add(Arrays.copyOf(samples, sampleCount));
+    }
+
+    private void report() {
+        long[] all = latencies.stream().flatMapToLong(Arrays::stream).sorted().toArray();
+        System.out.printf("requests=%d (%.0f/s) batches=%d%n",
+                requests.sum(), requests.sum() / (double) seconds, all.length);
+        if (all.length > 0) {
+            System.out.printf("batch round trip us: p50=%d p99=%d p99.9=%d max=%d%n",
+                    percentile(all, 0.50) / 1000, percentile(all, 0.99) / 1000,
+                    percentile(all, 0.999) / 1000, all[all.length - 1] / 1000);
+        }
+        errors.forEach((reply, count) -> System.out.println(reply + ": " + count.sum()));
+    }
+
+    private static long percentile(long[] sorted, double quantile) {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * quantile))];
+    }
+
+    private void check(BorrowEngine engine) {
+        FleetStore fleet = engine.getFleet();
+        int[] holders = new int[fleet.size()];
+        for (int u = 0; u < users; u++) {
+            User user = engine.findUser("user-" + u);
+            if (user == null) {
+                continue;
+            }
+            for (int slot = 0; slot < BorrowEngine.MAX_BORROWED; slot++) {
+                int row = user.getBorrowedRows().get(slot);
+                if (row >= 0) {
+                    holders[row]++;
+                }
+            }
+        }
+        int available = 0;
+        for (int row = 0; row < holders.length; row++) {
+            boolean free = fleet.isAvailable(row);
+            available += free ? 1 : 0;
+            if (holders[row] != (free ? 0 : 1)) {
+                failure.compareAndSet(null, fleet.getName(row) + " is " + fleet.getAvailability(row) + " with " + holders[row] + " holders");
+            }
+        }
+        if (available != fleet.getAvailableCount()) {
+            failure.compareAndSet(null, "available count " + fleet.getAvailableCount() + " but " + available + " bikes are free");
+        }
+        System.out.println("checked " + holders.length + " bikes, " + available + " available");
+    }
+
+    private static Writer writer(Socket socket) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+    }
+
+    private static BufferedReader reader(Socket socket) throws IOException {
+        return new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+    }
+}
+
+/*
+ * Checks for the failure paths the load test cannot reach: recovering a fleet journal whose tail
+ * was torn, truncated or left without its snapshot, fields too long to journal, and the borrowing
+ * limit under clients racing on one user. Prints one line per check and exits with status 1 if any
+ * failed.
+ *
+ * Run with: java FleetChecks
+ */
+class FleetChecks {
+    private int failures;
+
+    public static void main(String[] args) throws Exception {
+        FleetChecks checks = new FleetChecks();
+        checks.tornJournalTail();
+        checks.truncatedJournal();
+        checks.epochMismatch();
+        checks.overlongFields();
+        checks.borrowLimit(false);
+        checks.borrowLimit(true);
+        System.out.println(checks.failures == 0 ? "OK" : "FAILED: " + checks.failures + " checks");
+        if (checks.failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    private void check(String name, boolean passed) {
+        System.out.println((passed ? "PASS " : "FAIL ") + name);
+        if (!passed) {
+            failures++;
+        }
+    }
+
+    // Pages can reach the disk out of order, leaving a whole record behind a torn one
+    private void tornJournalTail() throws IOException {
+        Path directory = writeJournal(10);
+        List<Integer> offsets = frameOffsets(directory.resolve("journal.bin"));
+        int torn = offsets.get(offsets.size() - 3);
+        try (FileChannel channel = FileChannel.open(directory.resolve("journal.bin"), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(4).putInt(0, 0x1234), torn + 4);
+        }
+        List<String> recovered = recover(directory, null);
+        check("replay stops at a torn record", recovered.size() == 8 && !recovered.contains("bike-9"));
+        // A record the same size as the torn one must not bring back the one after it
+        recover(directory, "bike-x");
+        recovered = recover(directory, null);
+        check("records past a torn one stay dropped after new appends",
+                recovered.size() == 9 && recovered.contains("bike-x") && !recovered.contains("bike-9"));
+    }
+
+    private void truncatedJournal() throws IOException {
+        Path directory = writeJournal(10);
+        List<Integer> offsets = frameOffsets(directory.resolve("journal.bin"));
+        int last = offsets.get(offsets.size() - 2);
+        try (FileChannel channel = FileChannel.open(directory.resolve("journal.bin"), StandardOpenOption.WRITE)) {
+            channel.truncate(last + 8 + 3);
+        }
+        List<String> recovered = recover(directory, null);
+        check("truncated journal replays up to its last whole record",
+                recovered.size() == 9 && !recovered.contains("bike-9"));
+    }
+
+    // A journal written after a checkpoint means nothing without that checkpoint's snapshot
+    private void epochMismatch() throws IOException {
+        Path directory = Files.createTempDirectory("fleet-check");
+        Path snapshot = directory.resolve("snapshot.bin");
+        Path stale = directory.resolve("stale.bin");
+        BorrowEngine engine = new BorrowEngine(new FleetStore());
+        try (FleetJournal journal = new FleetJournal(directory, Duration.ofSeconds(1))) {
+            engine.recoverFrom(journal);
+            engine.addBicycle("bike-0", "make", "type");
+            engine.checkpoint();
+            Files.copy(snapshot, stale);
+            engine.addBicycle("bike-1", "make", "type");
+            engine.checkpoint();
+            engine.addBicycle("bike-2", "make", "type");
+        }
+        check("checkpointed journal replays on its snapshot", recover(directory, null).size() == 3);
+
+        Files.move(stale, snapshot, StandardCopyOption.REPLACE_EXISTING);
+        check("journal with a stale snapshot is refused", recoveryFails(directory));
+        Files.delete(snapshot);
+        check("journal with no snapshot is refused", recoveryFails(directory));
+    }
+
+    // A field the journal cannot store must be refused before anything changes
+    private void overlongFields() throws IOException {
+        Path directory = Files.createTempDirectory("fleet-check");
+        String tooLong = "x".repeat(0x10000);
+        BorrowEngine engine = new BorrowEngine(new FleetStore());
+        try (FleetJournal journal = new FleetJournal(directory, Duration.ofSeconds(1))) {
+            engine.recoverFrom(journal);
+            check("over-long bicycle fields are rejected",
+                    rejects(() -> engine.addBicycle(tooLong, "make", "type"))
+                            && rejects(() -> engine.addBicycle("bike-0", tooLong, "type"))
+                            && rejects(() -> engine.addBicycle("bike-0", "make", tooLong))
+                            && engine.getFleet().size() == 0);
+            check("over-long user fields are rejected",
+                    rejects(() -> engine.addUserIfAbsent(new User(tooLong, "user-0")))
+                            && rejects(() -> engine.addUserIfAbsent(new User("Name", tooLong)))
+                            && engine.findUser("user-0") == null);
+            StringBuilder reply = new StringBuilder();
+            BicycleProtocol protocol = new BicycleProtocol(engine);
+            protocol.execute("ADD\t" + tooLong + "\tmake\ttype", reply);
+            protocol.execute("BORROW\tuser-0\t" + tooLong + "\tbike-0", reply);
+            check("protocol answers over-long fields with an error",
+                    reply.toString().equals("ERR too-long\nERR too-long\n") && engine.getFleet().size() == 0);
+            engine.addBicycle("bike-0", "make", "type");
+        }
+        check("journal still replays after rejected fields", recover(directory, null).equals(List.of("bike-0")));
+    }
+
+    /*
+     * Clients borrowing and returning for the same user at once must never leave the user holding
+     * more than MAX_BORROWED. Each client only returns bikes it borrowed, and counts a return before
+     * making it, so the count never runs ahead of what the user really holds.
+     */
+    private void borrowLimit(boolean journaled) throws Exception {
+        String mode = journaled ? "journaled" : "unjournaled";
+        int bikes = 16;
+        BorrowEngine engine = new BorrowEngine(new FleetStore());
+        FleetJournal journal = journaled ? new FleetJournal(Files.createTempDirectory("fleet-check"), Duration.ofSeconds(1)) : null;
+        try {
+            if (journal != null) {
+                engine.recoverFrom(journal);
+            }
+            for (int i = 0; i < bikes; i++) {
+                engine.addBicycle("bike-" + i, "make", "type");
+            }
+            User user = new User("Shared", "user-0");
+            engine.addUserIfAbsent(user);
+            AtomicInteger held = new AtomicInteger();
+            AtomicInteger peak = new AtomicInteger();
+            LongAdder limited = new LongAdder();
+            AtomicReference<String> failure = new AtomicReference<>();
+            List<Thread> clients = new ArrayList<>();
+            for (int c = 0; c < 8; c++) {
+                clients.add(new Thread(() -> {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    List<Integer> mine = new ArrayList<>();
+                    for (int i = 0; i < 50_000 || !mine.isEmpty(); i++) {
+                        if (i < 50_000 && (mine.isEmpty() || random.nextBoolean())) {
+                            int row = random.nextInt(bikes);
+                            BorrowEngine.BorrowResult result = engine.borrow(user, row);
+                            if (result == BorrowEngine.BorrowResult.BORROWED) {
+                                peak.accumulateAndGet(held.incrementAndGet(), Math::max);
+                                mine.add(row);
+                            } else if (result == BorrowEngine.BorrowResult.LIMIT_REACHED) {
+                                limited.increment();
+                            }
+                        } else {
+                            held.decrementAndGet();
+                            int row = mine.remove(mine.size() - 1);
+                            if (engine.giveBack(user, row) != BorrowEngine.ReturnResult.RETURNED) {
+                                failure.compareAndSet(null, "bike-" + row + " could not be returned by its borrower");
+                            }
+                        }
+                    }
+                }, "borrow-check-" + c));
+            }
+            for (Thread client : clients) {
+                client.start();
+            }
+            for (Thread client : clients) {
+                client.join();
+            }
+            check(mode + " clients never exceed " + BorrowEngine.MAX_BORROWED + " bikes for one user",
+                    peak.get() <= BorrowEngine.MAX_BORROWED && limited.sum() > 0);
+            check(mode + " every bike comes back once", failure.get() == null
+                    && engine.borrowedBy(user).isEmpty() && engine.getFleet().getAvailableCount() == bikes);
+        } finally {
+            if (journal != null) {
+                journal.close();
+            }
+        }
+    }
+
+    private static boolean rejects(Runnable action) {
+        try {
+            action.run();
+            return false;
+        } catch (IllegalArgumentException e) {
+            return true;
+        }
+    }
+
+    private static boolean recoveryFails(Path directory) {
+        try {
+            recover(directory, null);
+            return false;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    // A fresh journal holding bike-0 to bike-(count - 1)
+    private static Path writeJournal(int count) throws IOException {
+        Path directory = Files.createTempDirectory("fleet-check");
+        BorrowEngine engine = new BorrowEngine(new FleetStore());
+        try (FleetJournal journal = new FleetJournal(directory, Duration.ofSeconds(1))) {
+            engine.recoverFrom(journal);
+            for (int i = 0; i < count; i++) {
+                engine.addBicycle("bike-" + i, "make", "type");
+            }
+        }
+        return directory;
+    }
+
+    // Bicycle names recovered from the directory, after adding one more bicycle if one is given
+    private static List<String> recover(Path directory, String add) throws IOException {
+        BorrowEngine engine = new BorrowEngine(new FleetStore());
+        try (FleetJournal journal = new FleetJournal(directory, Duration.ofSeconds(1))) {
+            engine.recoverFrom(journal);
+            if (add != null) {
+                engine.addBicycle(add, "make", "type");
+            }
+            FleetStore fleet = engine.getFleet();
+            List<String> names = new ArrayList<>(fleet.size());
+            for (int row = 0; row < fleet.size(); row++) {
+                names.add(fleet.getName(row));
+            }
+            return names;
+        }
+    }
+
+    // Start of each record in a closed journal, then the offset just past the last one
+    private static List<Integer> frameOffsets(Path journal) throws IOException {
+        List<Integer> offsets = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(journal, StandardOpenOption.READ)) {
+            ByteBuffer length = ByteBuffer.allocate(4);
+            int offset = 12;
+            while (true) {
+                length.clear();
+                if (channel.read(length, offset) < 4 || length.getInt(0) <= 0) {
+                    break;
+                }
+                offsets.add(offset);
+                offset += 8 + length.getInt(0);
             }
+            offsets.add(offset);
         }
+        return offsets;
     }
 }
@@ -1,43 +1,149 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.lang.invoke.VarHandle;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.time.Duration;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 
 class TimeInterval {
-    private LocalDateTime start;
-    private LocalDateTime end;
+    // Orders reservations by start, then end; the sequence breaks ties between identical slots
+    static final Comparator<TimeInterval> ORDER = Comparator.comparingLong(TimeInterval::getStartNanos)
+            .thenComparingLong(TimeInterval::getEndNanos)
+            .thenComparingLong(TimeInterval::getSequence);
+
+    private static final AtomicLong nextSequence = new AtomicLong();
+    private static final long MAX_EPOCH_SECOND = Long.MAX_VALUE / 1_000_000_000L - 1;
+
+    // Epoch nanoseconds, see toEpochNanos
+    private long start;
+    private long end;
     private TrainSchedule schedule;
+    private long sequence;
 
     public TimeInterval(LocalDateTime start, LocalDateTime end, TrainSchedule schedule) {
+        this(toEpochNanos(start), toEpochNanos(end), schedule);
+    }
+
+    TimeInterval(long start, long end, TrainSchedule schedule) {
         this.start = start;
         this.end = end;
         this.schedule = schedule;
+        this.sequence = nextSequence.incrementAndGet();
+    }
+
+    // Local times read as UTC; saturates outside roughly 1678 to 2262, far beyond any timetable
+    static long toEpochNanos(LocalDateTime time) {
+        long seconds = time.toEpochSecond(ZoneOffset.UTC);
+        if (seconds > MAX_EPOCH_SECOND) {
+            return Long.MAX_VALUE;
+        }
+        if (seconds < -MAX_EPOCH_SECOND) {
+            return Long.MIN_VALUE;
+        }
+        return seconds * 1_000_000_000L + time.getNano();
+    }
+
+    static LocalDateTime fromEpochNanos(long nanos) {
+        return LocalDateTime.ofEpochSecond(Math.floorDiv(nanos, 1_000_000_000L), (int) Math.floorMod(nanos, 1_000_000_000L), ZoneOffset.UTC);
     }
 
     public LocalDateTime getStart() {
-        return start;
+        return fromEpochNanos(start);
     }
 
     public LocalDateTime getEnd() {
+        return fromEpochNanos(end);
+    }
+
+    long getStartNanos() {
+        return start;
+    }
+
+    long getEndNanos() {
         return end;
     }
 
     public TrainSchedule getSchedule() {
         return schedule;
     }
+
+    long getSequence() {
+        return sequence;
+    }
 }
 
 class ScheduleEntry {
+    // Lets the scheduler pick whichever platform of the station suits best
+    public static final int ANY_PLATFORM = 0;
+
     private Station station;
-    private int platform;
-    private LocalDateTime arrivalTime;
-    private LocalDateTime departureTime;
+    // For flexible entries this is the platform picked at admission, ANY_PLATFORM until then
+    private volatile int platform;
+    // Null unless the entry is restricted to a preferred set
+    private int[] preferredPlatforms;
+    private boolean flexible;
+    // Epoch nanoseconds, as stored by TimeInterval
+    private long arrivalTime;
+    private long departureTime;
 
     public ScheduleEntry(Station station, int platform, LocalDateTime arrivalTime, LocalDateTime departureTime) {
         this.station = station;
         this.platform = platform;
-        this.arrivalTime = arrivalTime;
-        this.departureTime = departureTime;
+        this.flexible = platform == ANY_PLATFORM;
+        this.arrivalTime = TimeInterval.toEpochNanos(arrivalTime);
+        this.departureTime = TimeInterval.toEpochNanos(departureTime);
+    }
+
+    public ScheduleEntry(Station station, int[] preferredPlatforms, LocalDateTime arrivalTime, LocalDateTime departureTime) {
+        this(station, ANY_PLATFORM, arrivalTime, departureTime);
+        this.preferredPlatforms = preferredPlatforms.clone();
     }
 
     public Station getStation() {
@@ -48,11 +154,52 @@ class ScheduleEntry {
         return platform;
     }
 
+    public boolean isFlexible() {
+        return flexible;
+    }
+
+    public Platform resolvePlatform() {
+        return station.getPlatform(platform);
+    }
+
+    // Platforms the scheduler may pick from; just the fixed one for ordinary entries
+    public List<Platform> candidatePlatforms() {
+        List<Platform> candidates = new ArrayList<>();
+        if (!flexible) {
+            Platform fixed = resolvePlatform();
+            if (fixed != null) {
+                candidates.add(fixed);
+            }
+        } else if (preferredPlatforms == null) {
+            candidates.addAll(station.getPlatforms());
+        } else {
+            for (int number : preferredPlatforms) {
+                Platform preferred = station.getPlatform(number);
+                if (preferred != null && !candidates.contains(preferred)) {
+                    candidates.add(preferred);
+                }
+            }
+        }
+        return candidates;
+    }
+
+    void assignPlatform(int number) {
+        this.platform = number;
+    }
+
     public LocalDateTime getArrivalTime() {
-        return arrivalTime;
+        return TimeInterval.fromEpochNanos(arrivalTime);
     }
 
     public LocalDateTime getDepartureTime() {
+        return TimeInterval.fromEpochNanos(departureTime);
+    }
+
+    long getArrivalNanos() {
+        return arrivalTime;
+    }
+
+    long getDepartureNanos() {
         return departureTime;
     }
 }
@@ -76,15 +223,26 @@ class TrainSchedule {
 }
 
 class Station {
+    private static final AtomicInteger nextId = new AtomicInteger();
+
+    private int id;
     private String name;
     private List<Platform> platforms;
+    // Platform n lives at index n - 1
+    private Platform[] platformsByNumber;
 
     public Station(String name, int numberOfPlatforms) {
+        this.id = nextId.getAndIncrement();
         this.name = name;
-        this.platforms = new ArrayList<>();
+        this.platformsByNumber = new Platform[numberOfPlatforms];
         for (int i = 1; i <= numberOfPlatforms; i++) {
-            platforms.add(new Platform(i));
+            platformsByNumber[i - 1] = new Platform(this, i);
         }
+        this.platforms = Collections.unmodifiableList(Arrays.asList(platformsByNumber));
+    }
+
+    public int getId() {
+        return id;
     }
 
     public String getName() {
@@ -92,213 +250,3421 @@ class Station {
     }
 
     public Platform getPlatform(int number) {
-        for (Platform platform : platforms) {
-            if (platform.getNumber() == number) {
-                return platform;
-            }
+        if (number < 1 || number > platformsByNumber.length) {
+            return null;
         }
-        return null;
+        return platformsByNumber[number - 1];
     }
 
     public List<Platform> getPlatforms() {
         return platforms;
     }
+
+    public List<Platform> findFreePlatforms(LocalDateTime start, LocalDateTime end) {
+        List<Platform> free = new ArrayList<>();
+        for (Platform platform : platformsByNumber) {
+            if (platform.isFree(start, end)) {
+                free.add(platform);
+            }
+        }
+        return free;
+    }
 }
 
 class Platform {
+    private static final AtomicInteger nextId = new AtomicInteger();
+
+    private int id;
+    private Station station;
     private int number;
-    private List<TimeInterval> reservations = new ArrayList<>();
+    // Reservations never overlap, so ordering by start also orders them by end
+    private volatile Slots slots = new Slots(8);
     private ReentrantLock lock = new ReentrantLock();
+    // Odd while a writer holding the lock is mid-update, bumped again once it is done
+    private volatile long version;
+    // Also the number of slots in use
+    private volatile int reservationCount;
+    // Null unless scheduler metrics are enabled; lockedAt is only touched by the lock holder
+    private volatile LockStats lockStats;
+    private long lockedAt;
 
-    public Platform(int number) {
+    public Platform(Station station, int number) {
+        this.id = nextId.getAndIncrement();
+        this.station = station;
         this.number = number;
     }
 
+    // Unique across all stations; also the global lock order
+    public int getId() {
+        return id;
+    }
+
+    public Station getStation() {
+        return station;
+    }
+
     public int getNumber() {
         return number;
     }
 
+    // A read-only copy in start order, taken at one consistent version; reserve through the scheduler
     public List<TimeInterval> getReservations() {
-        return reservations;
+        return read(() -> {
+            Slots current = slots;
+            int size = Math.min(reservationCount, current.capacity());
+            List<TimeInterval> copy = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                if (current.schedules[i] != null) {
+                    copy.add(current.interval(i));
+                }
+            }
+            return Collections.unmodifiableList(copy);
+        });
     }
 
-    public void lock() {
-        lock.lock();
+    public long getVersion() {
+        return version;
     }
 
-    public void unlock() {
-        lock.unlock();
+    public int getReservationCount() {
+        return reservationCount;
     }
-}
 
-class Train extends Thread {
-    private TrainSchedule schedule;
-    private String trainId;
+    public LockStats getLockStats() {
+        return lockStats;
+    }
 
-    public Train(TrainSchedule schedule) {
-        this.schedule = schedule;
-        this.trainId = schedule.getTrainId();
+    void setLockStats(LockStats lockStats) {
+        this.lockStats = lockStats;
     }
 
-    @Override
-    public void run() {
-        try {
-            for (ScheduleEntry entry : schedule.getEntries()) {
-                LocalDateTime arrivalTime = entry.getArrivalTime();
-                LocalDateTime departureTime = entry.getDepartureTime();
+    public boolean isAvailable(LocalDateTime start, LocalDateTime end) {
+        return isAvailable(TimeInterval.toEpochNanos(start), TimeInterval.toEpochNanos(end));
+    }
 
-                long delay = calculateDelay(arrivalTime);
-                if (delay > 0) {
-                    Thread.sleep(delay);
-                }
-                System.out.println("Train " + trainId + " arrived at " + entry.getStation().getName() + " Platform " + entry.getPlatform() + " at " + arrivalTime);
+    public TimeInterval findConflict(LocalDateTime start, LocalDateTime end) {
+        return findConflict(TimeInterval.toEpochNanos(start), TimeInterval.toEpochNanos(end));
+    }
 
-                delay = calculateDelay(departureTime);
-                if (delay > 0) {
-                    Thread.sleep(delay);
-                }
-                System.out.println("Train " + trainId + " departed from " + entry.getStation().getName() + " Platform " + entry.getPlatform() + " at " + departureTime);
+    /*
+     * The primitive queries below are exact under the lock. Without it they may see a writer's
+     * half-finished update, so they stay in bounds but their answer only counts once read() has
+     * confirmed the version did not move.
+     */
+    boolean isAvailable(long start, long end) {
+        Slots current = slots;
+        return conflictIndex(current, Math.min(reservationCount, current.capacity()), start, end) < 0;
+    }
+
+    TimeInterval findConflict(long start, long end) {
+        Slots current = slots;
+        int index = conflictIndex(current, Math.min(reservationCount, current.capacity()), start, end);
+        return index < 0 ? null : current.interval(index);
+    }
+
+    // In non-overlapping slots only the last one starting before end can reach past start
+    private static int conflictIndex(Slots slots, int size, long start, long end) {
+        int candidate = lastStartingBefore(slots.starts, size, end);
+        return candidate >= 0 && slots.ends[candidate] > start ? candidate : -1;
+    }
+
+    private static int lastStartingBefore(long[] starts, int size, long time) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (starts[mid] < time) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
             }
-        } catch (InterruptedException e) {
-            System.out.println("Train " + trainId + " was canceled.");
         }
+        return high;
     }
 
-    private long calculateDelay(LocalDateTime targetTime) {
-        LocalDateTime now = LocalDateTime.now();
-        Duration duration = Duration.between(now, targetTime);
-        return duration.toMillis();
+    public long slackSeconds(LocalDateTime start, LocalDateTime end) {
+        return slackSeconds(TimeInterval.toEpochNanos(start), TimeInterval.toEpochNanos(end));
     }
-}
 
-public class TrainScheduler {
-    private List<Station> stations = new ArrayList<>();
-    private List<TrainSchedule> trainSchedules = new ArrayList<>();
-    private Map<TrainSchedule, Train> activeTrains = new HashMap<>();
+    // Free time left either side of a window that fits here; smaller means a tighter fit
+    long slackSeconds(long start, long end) {
+        Slots current = slots;
+        int size = Math.min(reservationCount, current.capacity());
+        int previous = lastStartingBefore(current.starts, size, end);
+        long before = previous < 0 ? Long.MAX_VALUE / 4 : (start - current.ends[previous]) / 1_000_000_000L;
+        long after = previous + 1 >= size ? Long.MAX_VALUE / 4 : (current.starts[previous + 1] - end) / 1_000_000_000L;
+        return before + after;
+    }
 
-    public void addStation(Station station) {
-        stations.add(station);
+    // Start of the first free window of the given length at or after the given time
+    public LocalDateTime findEarliestWindow(LocalDateTime after, Duration duration) {
+        if (duration.isNegative()) {
+            throw new IllegalArgumentException("Window length must not be negative: " + duration);
+        }
+        long length = duration.toNanos();
+        long from = TimeInterval.toEpochNanos(after);
+        long start = read(() -> {
+            Slots current = slots;
+            int size = Math.min(reservationCount, current.capacity());
+            long candidate = from;
+            int conflict;
+            // Each step moves past a slot's end, so even a torn read terminates
+            while ((conflict = conflictIndex(current, size, candidate, candidate + length)) >= 0) {
+                candidate = current.ends[conflict];
+            }
+            return candidate;
+        });
+        return start == from ? after : TimeInterval.fromEpochNanos(start);
     }
 
-    public boolean addTrainSchedule(TrainSchedule schedule) {
-        List<Platform> platformsToReserve = new ArrayList<>();
-        for (ScheduleEntry entry : schedule.getEntries()) {
-            Station station = entry.getStation();
-            Platform platform = station.getPlatform(entry.getPlatform());
-            if (platform == null) {
-                return false;
+    public boolean isFree(LocalDateTime start, LocalDateTime end) {
+        long from = TimeInterval.toEpochNanos(start);
+        long to = TimeInterval.toEpochNanos(end);
+        return read(() -> isAvailable(from, to));
+    }
+
+    // Lock-free when no writer interferes, otherwise retried under the lock
+    private <T> T read(Supplier<T> query) {
+        for (int attempt = 0; attempt < 4; attempt++) {
+            long before = version;
+            if ((before & 1) == 0) {
+                T result = query.get();
+                // Keeps the plain array reads above from drifting past the version check
+                VarHandle.loadLoadFence();
+                if (version == before) {
+                    return result;
+                }
             }
-            platformsToReserve.add(platform);
+            Thread.onSpinWait();
+        }
+        lock();
+        try {
+            return query.get();
+        } finally {
+            unlock();
         }
+    }
 
-        platformsToReserve.sort(Comparator.comparing(p -> p.getStation().getName() + p.getNumber()));
+    // Mutators must be called with the lock held. The slots rely on reservations never overlapping
+    public void addReservation(TimeInterval interval) {
+        if (!isAvailable(interval.getStartNanos(), interval.getEndNanos())) {
+            throw new IllegalArgumentException("Overlaps an existing reservation on platform " + number + ": "
+                    + interval.getStart() + " to " + interval.getEnd());
+        }
+        addReservation(interval.getStartNanos(), interval.getEndNanos(), interval.getSchedule());
+    }
 
+    void addReservation(long start, long end, TrainSchedule schedule) {
+        beginWrite();
         try {
-            for (Platform p : platformsToReserve) {
-                p.lock();
+            int size = reservationCount;
+            Slots current = slots;
+            if (size == current.capacity()) {
+                current = current.grow();
+                slots = current;
             }
-
-            for (int i = 0; i < schedule.getEntries().size(); i++) {
-                ScheduleEntry entry = schedule.getEntries().get(i);
-                Platform platform = platformsToReserve.get(i);
-                if (!isPlatformAvailable(platform, entry.getArrivalTime(), entry.getDepartureTime())) {
-                    return false;
-                }
+            // After any identical slots, so equal reservations keep their admission order
+            int index = lastStartingBefore(current.starts, size, start) + 1;
+            while (index < size && current.starts[index] == start && current.ends[index] <= end) {
+                index++;
             }
-
-            for (int i = 0; i < schedule.getEntries().size(); i++) {
-                ScheduleEntry entry = schedule.getEntries().get(i);
-                Platform platform = platformsToReserve.get(i);
-                platform.getReservations().add(new TimeInterval(entry.getArrivalTime(), entry.getDepartureTime(), schedule));
+            if (index < size) {
+                current.shift(index, index + 1, size - index);
             }
+            current.starts[index] = start;
+            current.ends[index] = end;
+            current.schedules[index] = schedule;
+            reservationCount = size + 1;
+        } finally {
+            version++;
+        }
+    }
+
+    // Removes a reservation with the same times held by the same schedule
+    public boolean removeReservation(TimeInterval interval) {
+        return removeReservation(interval.getStartNanos(), interval.getEndNanos(), interval.getSchedule());
+    }
 
-            synchronized (trainSchedules) {
-                trainSchedules.add(schedule);
+    boolean removeReservation(long start, long end, TrainSchedule schedule) {
+        beginWrite();
+        try {
+            Slots current = slots;
+            int size = reservationCount;
+            int index = lastStartingBefore(current.starts, size, start) + 1;
+            while (index < size && current.starts[index] == start
+                    && (current.ends[index] != end || current.schedules[index] != schedule)) {
+                index++;
             }
-            Train train = new Train(schedule);
-            activeTrains.put(schedule, train);
-            train.start();
+            if (index >= size || current.starts[index] != start) {
+                return false;
+            }
+            current.shift(index + 1, index, size - index - 1);
+            current.schedules[size - 1] = null;
+            reservationCount = size - 1;
             return true;
         } finally {
-            for (int i = platformsToReserve.size() - 1; i >= 0; i--) {
-                platformsToReserve.get(i).unlock();
-            }
+            version++;
         }
     }
 
-    private boolean isPlatformAvailable(Platform platform, LocalDateTime start, LocalDateTime end) {
-        for (TimeInterval interval : platform.getReservations()) {
-            if (interval.getStart().isBefore(end) && interval.getEnd().isAfter(start)) {
-                return false;
+    // Expired reservations sit at the head of the slots, so this stops at the first live one
+    public int removeExpired(LocalDateTime cutoff, int limit, List<TimeInterval> removed) {
+        long before = TimeInterval.toEpochNanos(cutoff);
+        beginWrite();
+        try {
+            Slots current = slots;
+            int size = reservationCount;
+            int count = 0;
+            while (count < limit && count < size && current.ends[count] < before) {
+                removed.add(current.interval(count));
+                count++;
+            }
+            if (count > 0) {
+                current.shift(count, 0, size - count);
+                Arrays.fill(current.schedules, size - count, size, null);
+                reservationCount = size - count;
             }
+            return count;
+        } finally {
+            version++;
+        }
+    }
+
+    private void beginWrite() {
+        version++;
+        // Readers that see the odd version must not see any of the writes that follow it
+        VarHandle.storeStoreFence();
+    }
+
+    /*
+     * Parallel arrays sorted by start, then end: about 20 bytes a reservation. Overlap checks only
+     * touch the primitive columns; the schedule column is read to report conflicts.
+     */
+    private static class Slots {
+        private long[] starts;
+        private long[] ends;
+        private TrainSchedule[] schedules;
+
+        Slots(int capacity) {
+            starts = new long[capacity];
+            ends = new long[capacity];
+            schedules = new TrainSchedule[capacity];
+        }
+
+        int capacity() {
+            return schedules.length;
+        }
+
+        Slots grow() {
+            Slots larger = new Slots(capacity() * 2);
+            System.arraycopy(starts, 0, larger.starts, 0, capacity());
+            System.arraycopy(ends, 0, larger.ends, 0, capacity());
+            System.arraycopy(schedules, 0, larger.schedules, 0, capacity());
+            return larger;
+        }
+
+        void shift(int from, int to, int length) {
+            System.arraycopy(starts, from, starts, to, length);
+            System.arraycopy(ends, from, ends, to, length);
+            System.arraycopy(schedules, from, schedules, to, length);
+        }
+
+        TimeInterval interval(int index) {
+            return new TimeInterval(starts[index], ends[index], schedules[index]);
+        }
+    }
+
+    public void lock() {
+        LockStats stats = lockStats;
+        if (stats == null) {
+            lock.lock();
+            return;
+        }
+        long requested = System.nanoTime();
+        lock.lock();
+        acquired(stats, requested);
+    }
+
+    public boolean tryLock() {
+        LockStats stats = lockStats;
+        long requested = stats == null ? 0 : System.nanoTime();
+        if (!lock.tryLock()) {
+            return false;
+        }
+        if (stats != null) {
+            acquired(stats, requested);
         }
         return true;
     }
 
-    public boolean cancelTrainSchedule(TrainSchedule schedule) {
-        synchronized (trainSchedules) {
-            if (!trainSchedules.remove(schedule)) {
-                return false;
-            }
+    private void acquired(LockStats stats, long requested) {
+        if (lock.getHoldCount() == 1) {
+            lockedAt = System.nanoTime();
+            stats.acquired(lockedAt - requested);
         }
+    }
 
-        Train train = activeTrains.get(schedule);
-        if (train != null) {
-            train.interrupt();
-            activeTrains.remove(schedule);
+    public void unlock() {
+        LockStats stats = lockStats;
+        if (stats != null && lockedAt != 0 && lock.getHoldCount() == 1) {
+            stats.released(System.nanoTime() - lockedAt);
+            lockedAt = 0;
         }
+        lock.unlock();
+    }
+}
 
-        List<Platform> platformsToUpdate = new ArrayList<>();
-        for (ScheduleEntry entry : schedule.getEntries()) {
-            Platform platform = entry.getStation().getPlatform(entry.getPlatform());
-            platformsToUpdate.add(platform);
+interface SimulationClock {
+    LocalDateTime now();
+
+    // Real nanoseconds to wait before the clock reads the given time
+    long nanosUntil(LocalDateTime time);
+
+    // Called as each event fires; only discrete clocks move forward here
+    default void advanceTo(LocalDateTime time) {
+    }
+
+    default boolean isRealTime() {
+        return true;
+    }
+}
+
+class WallClock implements SimulationClock {
+    @Override
+    public LocalDateTime now() {
+        return LocalDateTime.now();
+    }
+
+    @Override
+    public long nanosUntil(LocalDateTime time) {
+        return Duration.between(now(), time).toNanos();
+    }
+}
+
+// Runs simulated time faster than real time, e.g. a factor of 1000 plays an hour in 3.6 seconds
+class ScaledClock implements SimulationClock {
+    private LocalDateTime origin;
+    private long originNanos;
+    private double factor;
+
+    public ScaledClock(LocalDateTime origin, double factor) {
+        if (factor <= 0) {
+            throw new IllegalArgumentException("Scale factor must be positive: " + factor);
         }
+        this.origin = origin;
+        this.originNanos = System.nanoTime();
+        this.factor = factor;
+    }
 
-        platformsToUpdate.sort(Comparator.comparing(p -> p.getStation().getName() + p.getNumber()));
+    @Override
+    public LocalDateTime now() {
+        return origin.plusNanos((long) ((System.nanoTime() - originNanos) * factor));
+    }
 
-        try {
-            for (Platform p : platformsToUpdate) {
-                p.lock();
-            }
+    @Override
+    public long nanosUntil(LocalDateTime time) {
+        return (long) (Duration.between(now(), time).toNanos() / factor);
+    }
+}
 
+// Never waits: time jumps straight to each event as it is processed
+class DiscreteEventClock implements SimulationClock {
+    private volatile LocalDateTime now;
+
+    public DiscreteEventClock(LocalDateTime start) {
+        this.now = start;
+    }
+
+    @Override
+    public LocalDateTime now() {
+        return now;
+    }
+
+    @Override
+    public long nanosUntil(LocalDateTime time) {
+        return 0;
+    }
+
+    @Override
+    public void advanceTo(LocalDateTime time) {
+        if (time.isAfter(now)) {
+            now = time;
+        }
+    }
+
+    @Override
+    public boolean isRealTime() {
+        return false;
+    }
+}
+
+class Train implements Runnable {
+    private TrainSchedule schedule;
+    private String trainId;
+    private SimulationClock clock;
+    // Null prints each event straight to System.out
+    private TrainEventPipeline events;
+
+    public Train(TrainSchedule schedule) {
+        this(schedule, new WallClock());
+    }
+
+    public Train(TrainSchedule schedule, SimulationClock clock) {
+        this(schedule, clock, null);
+    }
+
+    public Train(TrainSchedule schedule, SimulationClock clock, TrainEventPipeline events) {
+        this.schedule = schedule;
+        this.trainId = schedule.getTrainId();
+        this.clock = clock;
+        this.events = events;
+    }
+
+    public TrainSchedule getSchedule() {
+        return schedule;
+    }
+
+    // Blocking run used by the thread-per-train runners; an interrupt cancels it
+    @Override
+    public void run() {
+        try {
             for (ScheduleEntry entry : schedule.getEntries()) {
-                Platform platform = entry.getStation().getPlatform(entry.getPlatform());
-                Iterator<TimeInterval> it = platform.getReservations().iterator();
-                while (it.hasNext()) {
-                    TimeInterval interval = it.next();
-                    if (interval.getSchedule() == schedule) {
-                        it.remove();
-                    }
+                long delay = calculateDelay(entry.getArrivalTime());
+                if (delay > 0) {
+                    Thread.sleep(delay);
                 }
+                arrived(entry);
+
+                delay = calculateDelay(entry.getDepartureTime());
+                if (delay > 0) {
+                    Thread.sleep(delay);
+                }
+                departed(entry);
             }
-        } finally {
-            for (int i = platformsToUpdate.size() - 1; i >= 0; i--) {
-                platformsToUpdate.get(i).unlock();
-            }
+        } catch (InterruptedException e) {
+            canceled();
         }
-        return true;
     }
 
-    public List<TrainSchedule> getTrainSchedules() {
-        return new ArrayList<>(trainSchedules);
+    public void arrived(ScheduleEntry entry) {
+        emit(TrainEventType.ARRIVED, entry.getStation(), entry.getPlatform(), entry.getArrivalNanos());
     }
 
-    public static void main(String[] args) {
-        TrainScheduler scheduler = new TrainScheduler();
-        Station stationA = new Station("Station A", 2);
-        scheduler.addStation(stationA);
+    public void departed(ScheduleEntry entry) {
+        emit(TrainEventType.DEPARTED, entry.getStation(), entry.getPlatform(), entry.getDepartureNanos());
+    }
 
-        LocalDateTime now = LocalDateTime.now();
-        LocalDateTime departureTime = now.plusMinutes(1);
-        LocalDateTime arrivalTime = now.plusMinutes(2);
+    public void canceled() {
+        emit(TrainEventType.CANCELLED, null, 0, 0);
+    }
 
-        ScheduleEntry entry = new ScheduleEntry(stationA, 1, arrivalTime, departureTime);
-        List<ScheduleEntry> entries = new ArrayList<>();
-        entries.add(entry);
+    private void emit(TrainEventType type, Station station, int platform, long time) {
+        if (events != null) {
+            events.publish(type, trainId, station, platform, time);
+        } else {
+            System.out.println(TrainEvent.describe(new StringBuilder(), type, trainId, station, platform, time));
+        }
+    }
 
-        TrainSchedule schedule = new TrainSchedule("T123", entries);
-        boolean added = scheduler.addTrainSchedule(schedule);
-        System.out.println("Schedule added: " + added);
+    public long calculateDelay(LocalDateTime targetTime) {
+        return TimeUnit.NANOSECONDS.toMillis(clock.nanosUntil(targetTime));
+    }
+}
+
+enum TrainEventType {
+    ARRIVED,
+    DEPARTED,
+    CANCELLED
+}
+
+// A ring slot, reused once every sink has seen it; sinks keep copy() if they need the event later
+class TrainEvent {
+    private TrainEventType type;
+    private String trainId;
+    // Station, platform and time are unset for cancellations
+    private Station station;
+    private int platform;
+    private long time;
+
+    void set(TrainEventType type, String trainId, Station station, int platform, long time) {
+        this.type = type;
+        this.trainId = trainId;
+        this.station = station;
+        this.platform = platform;
+        this.time = time;
+    }
+
+    public TrainEvent copy() {
+        TrainEvent copy = new TrainEvent();
+        copy.set(type, trainId, station, platform, time);
+        return copy;
+    }
+
+    public TrainEventType getType() {
+        return type;
+    }
+
+    public String getTrainId() {
+        return trainId;
+    }
+
+    public Station getStation() {
+        return station;
+    }
+
+    public int getPlatform() {
+        return platform;
+    }
+
+    public LocalDateTime getTime() {
+        return station == null ? null : TimeInterval.fromEpochNanos(time);
+    }
+
+    public StringBuilder appendTo(StringBuilder out) {
+        return describe(out, type, trainId, station, platform, time);
+    }
+
+    static StringBuilder describe(StringBuilder out, TrainEventType type, String trainId, Station station, int platform, long time) {
+        out.append("Train ").append(trainId);
+        switch (type) {
+            case ARRIVED:
+                out.append(" arrived at ");
+                break;
+            case DEPARTED:
+                out.append(" departed from ");
+                break;
+            default:
+                return out.append(" was canceled.");
+        }
+        return out.append(station.getName()).append(" Platform ").append(platform)
+                .append(" at ").append(TimeInterval.fromEpochNanos(time));
+    }
+
+    @Override
+    public String toString() {
+        return appendTo(new StringBuilder()).toString();
+    }
+}
+
+interface TrainEventSink {
+    // Called on the pipeline's consumer thread only
+    void accept(TrainEvent event);
+
+    // Called whenever the ring runs dry, so output can go out in batches
+    default void flush() {
+    }
+
+    default void close() {
+    }
+}
+
+// Prints the classic one-line messages, one System.out call per batch instead of per event
+class ConsoleEventSink implements TrainEventSink {
+    private StringBuilder buffer = new StringBuilder();
+
+    @Override
+    public void accept(TrainEvent event) {
+        event.appendTo(buffer).append(System.lineSeparator());
+        if (buffer.length() >= 1 << 16) {
+            flush();
+        }
+    }
+
+    @Override
+    public void flush() {
+        if (buffer.length() > 0) {
+            System.out.print(buffer);
+            System.out.flush();
+            buffer.setLength(0);
+        }
+    }
+}
+
+class FileEventSink implements TrainEventSink {
+    private BufferedWriter writer;
+    private StringBuilder line = new StringBuilder();
+
+    public FileEventSink(Path file) throws IOException {
+        this.writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    @Override
+    public void accept(TrainEvent event) {
+        line.setLength(0);
+        event.appendTo(line).append('\n');
+        try {
+            writer.append(line);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void flush() {
+        try {
+            writer.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            writer.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
+
+// Keeps copies of every event, mainly so tests can assert on what the trains did
+class InMemoryEventSink implements TrainEventSink {
+    private List<TrainEvent> events = new ArrayList<>();
+
+    @Override
+    public synchronized void accept(TrainEvent event) {
+        events.add(event.copy());
+    }
+
+    public synchronized List<TrainEvent> getEvents() {
+        return new ArrayList<>(events);
+    }
+
+    public synchronized void clear() {
+        events.clear();
+    }
+}
+
+// What a producer does when the ring is full
+enum EventBackpressure {
+    // Wait for the consumer to free a slot; trains slow down to the speed of the sinks
+    BLOCK,
+    // Count the event as dropped and carry on
+    DROP
+}
+
+/*
+ * Multi-producer, single-consumer ring of preallocated TrainEvent slots. A producer claims a
+ * sequence number with a CAS, fills the slot in place and publishes it by storing the sequence
+ * in the slot's marker; nothing is allocated on that path. One daemon thread hands the events to
+ * the sinks in sequence order and flushes them whenever it catches up.
+ */
+class TrainEventPipeline implements Closeable {
+    public static final int DEFAULT_CAPACITY = 1 << 14;
+    private static final int IDLE_SPINS = 200;
+    // Set in claimed by close so that no sequence can be claimed afterwards
+    private static final long CLOSED = 1L << 62;
+
+    private TrainEvent[] slots;
+    // Sequence number most recently published into each slot
+    private AtomicLongArray published;
+    private int mask;
+    private EventBackpressure backpressure;
+    // Next sequence to claim, with the CLOSED bit once the pipeline is closed
+    private AtomicLong claimed = new AtomicLong();
+    // Next sequence the consumer reads; every slot before it may be reused
+    private volatile long consumed;
+    // Sinks have been flushed for every sequence before this
+    private volatile long flushed;
+    private LongAdder dropped = new LongAdder();
+    private LongAdder sinkFailures = new LongAdder();
+    private List<TrainEventSink> sinks = new CopyOnWriteArrayList<>();
+    private Thread consumer;
+    private volatile boolean consumerParked;
+
+    public TrainEventPipeline() {
+        this(DEFAULT_CAPACITY, EventBackpressure.BLOCK);
+    }
+
+    // Capacity is rounded up to a power of two
+    public TrainEventPipeline(int capacity, EventBackpressure backpressure) {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Capacity out of range: " + capacity);
+        }
+        int size = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        this.slots = new TrainEvent[size];
+        this.published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            slots[i] = new TrainEvent();
+            published.set(i, -1);
+        }
+        this.mask = size - 1;
+        this.backpressure = backpressure;
+        this.consumer = new Thread(this::consume, "train-events");
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    // Console output as before the pipeline existed
+    public static TrainEventPipeline console() {
+        TrainEventPipeline pipeline = new TrainEventPipeline();
+        pipeline.addSink(new ConsoleEventSink());
+        return pipeline;
+    }
+
+    public void addSink(TrainEventSink sink) {
+        sinks.add(sink);
+    }
+
+    public void removeSink(TrainEventSink sink) {
+        sinks.remove(sink);
+    }
+
+    public int getCapacity() {
+        return slots.length;
+    }
+
+    public EventBackpressure getBackpressure() {
+        return backpressure;
+    }
+
+    public long getPublished() {
+        return claimed.get() & ~CLOSED;
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public long getSinkFailures() {
+        return sinkFailures.sum();
+    }
+
+    // False if the event was dropped because the ring was full or the pipeline closed
+    public boolean publish(TrainEventType type, String trainId, Station station, int platform, long time) {
+        long sequence;
+        while (true) {
+            sequence = claimed.get();
+            // Claims and close race on the same counter, so a claimed event is always delivered
+            if ((sequence & CLOSED) != 0) {
+                dropped.increment();
+                return false;
+            }
+            if (sequence - consumed >= slots.length) {
+                if (backpressure == EventBackpressure.DROP) {
+                    dropped.increment();
+                    return false;
+                }
+                LockSupport.unpark(consumer);
+                LockSupport.parkNanos(10_000);
+                continue;
+            }
+            if (claimed.compareAndSet(sequence, sequence + 1)) {
+                break;
+            }
+        }
+        int index = (int) sequence & mask;
+        slots[index].set(type, trainId, station, platform, time);
+        published.set(index, sequence);
+        if (consumerParked) {
+            LockSupport.unpark(consumer);
+        }
+        return true;
+    }
+
+    // Waits until everything published so far has reached the sinks and been flushed
+    public void flush() {
+        long target = claimed.get() & ~CLOSED;
+        while (flushed < target && consumer.isAlive()) {
+            LockSupport.unpark(consumer);
+            LockSupport.parkNanos(100_000);
+        }
+    }
+
+    // Delivers what was already published, then closes the sinks; later events are dropped
+    @Override
+    public void close() {
+        claimed.getAndUpdate(current -> current | CLOSED);
+        LockSupport.unpark(consumer);
+        try {
+            consumer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void consume() {
+        int idle = 0;
+        while (true) {
+            long next = consumed;
+            int index = (int) next & mask;
+            if (published.get(index) == next) {
+                TrainEvent event = slots[index];
+                for (TrainEventSink sink : sinks) {
+                    try {
+                        sink.accept(event);
+                    } catch (RuntimeException e) {
+                        sinkFailures.increment();
+                    }
+                }
+                consumed = next + 1;
+                idle = 0;
+                continue;
+            }
+            if (idle++ == 0) {
+                flushSinks(next);
+            }
+            // A claimed but unpublished slot is still on its way
+            if (claimed.get() == (next | CLOSED)) {
+                break;
+            }
+            if (idle < IDLE_SPINS) {
+                Thread.onSpinWait();
+            } else {
+                // Publishers, flush and close unpark the consumer after seeing the flag
+                consumerParked = true;
+                if (published.get(index) != next && (claimed.get() & CLOSED) == 0) {
+                    LockSupport.park(this);
+                }
+                consumerParked = false;
+            }
+        }
+        flushSinks(consumed);
+        for (TrainEventSink sink : sinks) {
+            try {
+                sink.close();
+            } catch (RuntimeException e) {
+                sinkFailures.increment();
+            }
+        }
+        flushed = Long.MAX_VALUE;
+    }
+
+    private void flushSinks(long upTo) {
+        for (TrainEventSink sink : sinks) {
+            try {
+                sink.flush();
+            } catch (RuntimeException e) {
+                sinkFailures.increment();
+            }
+        }
+        flushed = upTo;
+    }
+}
+
+interface TrainRun {
+    void cancel();
+}
+
+interface TrainRunner {
+    TrainRun start(Train train);
+
+    SimulationClock getClock();
+
+    // Runs started but neither finished nor cancelled
+    int getActiveRuns();
+
+    void shutdown();
+}
+
+// One thread per train, sleeping between events; works with platform or virtual threads
+class ThreadPerTrainRunner implements TrainRunner {
+    private ThreadFactory threadFactory;
+    private SimulationClock clock;
+    private AtomicInteger activeRuns = new AtomicInteger();
+
+    public ThreadPerTrainRunner(ThreadFactory threadFactory, SimulationClock clock) {
+        if (!clock.isRealTime()) {
+            throw new IllegalArgumentException("Independent train threads cannot share a discrete-event clock");
+        }
+        this.threadFactory = threadFactory;
+        this.clock = clock;
+    }
+
+    public static ThreadPerTrainRunner platformThreads() {
+        return platformThreads(new WallClock());
+    }
+
+    public static ThreadPerTrainRunner platformThreads(SimulationClock clock) {
+        return new ThreadPerTrainRunner(Thread.ofPlatform().name("train-", 0).factory(), clock);
+    }
+
+    public static ThreadPerTrainRunner virtualThreads() {
+        return virtualThreads(new WallClock());
+    }
+
+    public static ThreadPerTrainRunner virtualThreads(SimulationClock clock) {
+        return new ThreadPerTrainRunner(Thread.ofVirtual().name("train-", 0).factory(), clock);
+    }
+
+    @Override
+    public TrainRun start(Train train) {
+        activeRuns.incrementAndGet();
+        Thread thread = threadFactory.newThread(() -> {
+            try {
+                train.run();
+            } finally {
+                activeRuns.decrementAndGet();
+            }
+        });
+        thread.start();
+        return thread::interrupt;
+    }
+
+    @Override
+    public SimulationClock getClock() {
+        return clock;
+    }
+
+    @Override
+    public int getActiveRuns() {
+        return activeRuns.get();
+    }
+
+    @Override
+    public void shutdown() {
+    }
+}
+
+/*
+ * All trains share one time-ordered event queue and each run only ever has its next event queued.
+ * Real-time clocks are served by a background thread; a discrete-event clock is driven by the
+ * caller through runUntilIdle(), which replays every queued event without waiting. The queue is
+ * advanced under the lock, but trains are told about their events only after it is released, so
+ * a slow or blocking sink never holds up start() or cancel(), and a sink may call back in.
+ */
+class EventLoopRunner implements TrainRunner {
+    private SimulationClock clock;
+    private TreeSet<Event> queue = new TreeSet<>();
+    private ReentrantLock lock = new ReentrantLock();
+    private Condition changed = lock.newCondition();
+    private long nextSequence;
+    private boolean running = true;
+    private volatile int activeRuns;
+
+    public EventLoopRunner() {
+        this(new WallClock());
+    }
+
+    public EventLoopRunner(SimulationClock clock) {
+        this.clock = clock;
+        if (clock.isRealTime()) {
+            Thread thread = new Thread(this::loop, "train-event-loop");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    @Override
+    public TrainRun start(Train train) {
+        lock.lock();
+        try {
+            EventRun run = new EventRun(train);
+            activeRuns++;
+            run.scheduleNext();
+            return run;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public SimulationClock getClock() {
+        return clock;
+    }
+
+    @Override
+    public int getActiveRuns() {
+        return activeRuns;
+    }
+
+    // Drops every queued run; they count as cancelled, though their trains are not told
+    @Override
+    public void shutdown() {
+        lock.lock();
+        try {
+            running = false;
+            for (Event event : queue) {
+                event.run.canceled = true;
+                event.run.pending = null;
+            }
+            queue.clear();
+            activeRuns = 0;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Fires every queued event in time order, advancing a discrete clock as it goes
+    public void runUntilIdle() {
+        if (clock.isRealTime()) {
+            throw new IllegalStateException("Real-time event loops are driven by their own thread");
+        }
+        while (true) {
+            Runnable notice;
+            lock.lock();
+            try {
+                Event next = queue.pollFirst();
+                if (next == null) {
+                    return;
+                }
+                clock.advanceTo(TimeInterval.fromEpochNanos(next.time));
+                notice = next.run.advance();
+            } finally {
+                lock.unlock();
+            }
+            notice.run();
+        }
+    }
+
+    private void loop() {
+        List<Runnable> due = new ArrayList<>();
+        try {
+            while (true) {
+                lock.lock();
+                try {
+                    while (running && due.isEmpty()) {
+                        if (queue.isEmpty()) {
+                            changed.await();
+                            continue;
+                        }
+                        long wait = clock.nanosUntil(TimeInterval.fromEpochNanos(queue.first().time));
+                        if (wait > 0) {
+                            changed.awaitNanos(wait);
+                            continue;
+                        }
+                        // Everything already due goes out in one batch, still in time order
+                        while (!queue.isEmpty() && clock.nanosUntil(TimeInterval.fromEpochNanos(queue.first().time)) <= 0) {
+                            due.add(queue.pollFirst().run.advance());
+                        }
+                    }
+                    if (!running) {
+                        return;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                for (Runnable notice : due) {
+                    notice.run();
+                }
+                due.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void enqueue(Event event) {
+        queue.add(event);
+        if (queue.first() == event) {
+            changed.signal();
+        }
+    }
+
+    private class Event implements Comparable<Event> {
+        // Epoch nanoseconds, as stored by ScheduleEntry
+        private long time;
+        private long sequence;
+        private EventRun run;
+
+        Event(long time, EventRun run) {
+            this.time = time;
+            this.sequence = nextSequence++;
+            this.run = run;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            int byTime = Long.compare(time, other.time);
+            return byTime != 0 ? byTime : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    // State is guarded by the runner's lock
+    private class EventRun implements TrainRun {
+        private Train train;
+        private List<ScheduleEntry> entries;
+        // Even steps are arrivals, odd steps departures
+        private int step;
+        private boolean canceled;
+        private Event pending;
+
+        EventRun(Train train) {
+            this.train = train;
+            this.entries = train.getSchedule().getEntries();
+        }
+
+        void scheduleNext() {
+            pending = null;
+            if (canceled) {
+                return;
+            }
+            if (step >= entries.size() * 2) {
+                activeRuns--;
+                return;
+            }
+            ScheduleEntry entry = entries.get(step / 2);
+            pending = new Event(step % 2 == 0 ? entry.getArrivalNanos() : entry.getDepartureNanos(), this);
+            enqueue(pending);
+        }
+
+        // Takes the step whose event just came due and returns the notice to give the train
+        Runnable advance() {
+            ScheduleEntry entry = entries.get(step / 2);
+            boolean arrival = step % 2 == 0;
+            step++;
+            scheduleNext();
+            return arrival ? () -> train.arrived(entry) : () -> train.departed(entry);
+        }
+
+        @Override
+        public void cancel() {
+            lock.lock();
+            try {
+                if (canceled || step >= entries.size() * 2) {
+                    return;
+                }
+                canceled = true;
+                activeRuns--;
+                if (pending != null) {
+                    queue.remove(pending);
+                    pending = null;
+                }
+            } finally {
+                lock.unlock();
+            }
+            train.canceled();
+        }
+    }
+}
+
+// One admitted schedule: the exact intervals it holds on each platform and its live run
+class ReservationHandle {
+    private TrainSchedule schedule;
+    private List<Platform> platforms;
+    private volatile TrainRun run;
+    private AtomicInteger unexpiredIntervals;
+    // Identifies this admission in the journal, since train ids may repeat; -1 until journalled
+    private long journalSequence = -1;
+
+    ReservationHandle(TrainSchedule schedule, List<Platform> platforms) {
+        this.schedule = schedule;
+        this.platforms = platforms;
+        this.unexpiredIntervals = new AtomicInteger(platforms.size());
+    }
+
+    public TrainSchedule getSchedule() {
+        return schedule;
+    }
+
+    // Platform i holds interval i, matching the schedule's entries
+    public List<Platform> getPlatforms() {
+        return Collections.unmodifiableList(platforms);
+    }
+
+    // Built on demand; the platforms themselves only keep the times and the schedule
+    public List<TimeInterval> getIntervals() {
+        List<TimeInterval> intervals = new ArrayList<>(platforms.size());
+        for (ScheduleEntry entry : schedule.getEntries()) {
+            intervals.add(new TimeInterval(entry.getArrivalNanos(), entry.getDepartureNanos(), schedule));
+        }
+        return intervals;
+    }
+
+    long getJournalSequence() {
+        return journalSequence;
+    }
+
+    void setJournalSequence(long journalSequence) {
+        this.journalSequence = journalSequence;
+    }
+
+    void addReservations() {
+        for (int i = 0; i < platforms.size(); i++) {
+            ScheduleEntry entry = schedule.getEntries().get(i);
+            platforms.get(i).addReservation(entry.getArrivalNanos(), entry.getDepartureNanos(), schedule);
+        }
+    }
+
+    void removeReservation(int i) {
+        ScheduleEntry entry = schedule.getEntries().get(i);
+        platforms.get(i).removeReservation(entry.getArrivalNanos(), entry.getDepartureNanos(), schedule);
+    }
+
+    TrainRun getRun() {
+        return run;
+    }
+
+    void setRun(TrainRun run) {
+        this.run = run;
+    }
+
+    // True once compaction has reclaimed every interval of this admission
+    boolean expireInterval() {
+        return unexpiredIntervals.decrementAndGet() == 0;
+    }
+}
+
+class ScheduleConflict {
+    private TrainSchedule schedule;
+    private ScheduleEntry entry;
+    private TrainSchedule conflictingSchedule;
+    private String reason;
+
+    public ScheduleConflict(TrainSchedule schedule, ScheduleEntry entry, TrainSchedule conflictingSchedule, String reason) {
+        this.schedule = schedule;
+        this.entry = entry;
+        this.conflictingSchedule = conflictingSchedule;
+        this.reason = reason;
+    }
+
+    public TrainSchedule getSchedule() {
+        return schedule;
+    }
+
+    public ScheduleEntry getEntry() {
+        return entry;
+    }
+
+    // Null when the entry is invalid on its own rather than clashing with another schedule
+    public TrainSchedule getConflictingSchedule() {
+        return conflictingSchedule;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    @Override
+    public String toString() {
+        return "Train " + schedule.getTrainId() + " at " + entry.getStation().getName() + " Platform " + entry.getPlatform() + ": " + reason;
+    }
+}
+
+class BatchAdmissionResult {
+    private boolean committed;
+    private List<ReservationHandle> handles;
+    private List<ScheduleConflict> conflicts;
+
+    public BatchAdmissionResult(boolean committed, List<ReservationHandle> handles, List<ScheduleConflict> conflicts) {
+        this.committed = committed;
+        this.handles = handles;
+        this.conflicts = conflicts;
+    }
+
+    public boolean isCommitted() {
+        return committed;
+    }
+
+    // Empty unless the batch was committed
+    public List<ReservationHandle> getHandles() {
+        return handles;
+    }
+
+    public List<ScheduleConflict> getConflicts() {
+        return conflicts;
+    }
+}
+
+enum RejectionReason {
+    NO_SUCH_PLATFORM,
+    DEPARTS_BEFORE_ARRIVAL,
+    PLATFORM_BUSY,
+    NO_FREE_PLATFORM,
+    BATCH_CONFLICT
+}
+
+// Log-linear latency buckets: cheap to record from many threads, percentiles within 1/16 of the true value
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private AtomicLongArray buckets = new AtomicLongArray((64 - SUB_BUCKET_BITS) * SUB_BUCKETS);
+    private LongAdder count = new LongAdder();
+    private LongAdder totalNanos = new LongAdder();
+    private LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+    public void record(long nanos) {
+        buckets.incrementAndGet(bucket(Math.max(nanos, 0)));
+        count.increment();
+        totalNanos.add(nanos);
+        maxNanos.accumulate(nanos);
+    }
+
+    // Folds another histogram into this one, e.g. per-thread histograms at the end of a run
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < buckets.length(); i++) {
+            long n = other.buckets.get(i);
+            if (n != 0) {
+                buckets.addAndGet(i, n);
+            }
+        }
+        count.add(other.count.sum());
+        totalNanos.add(other.totalNanos.sum());
+        maxNanos.accumulate(other.maxNanos.get());
+    }
+
+    // Values below SUB_BUCKETS get a bucket each; above that, each power of two is split SUB_BUCKETS ways
+    private static int bucket(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) nanos;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(nanos);
+        int sub = (int) (nanos >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int magnitude = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long lower = (1L << magnitude) | ((long) (bucket % SUB_BUCKETS) << (magnitude - SUB_BUCKET_BITS));
+        return lower + (1L << (magnitude - SUB_BUCKET_BITS)) - 1;
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getMeanNanos() {
+        long n = count.sum();
+        return n == 0 ? 0 : totalNanos.sum() / n;
+    }
+
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    // Upper bound of the bucket holding the given quantile
+    public long getPercentileNanos(double quantile) {
+        long n = 0;
+        long[] counts = new long[buckets.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = buckets.get(i);
+            n += counts[i];
+        }
+        long rank = (long) Math.ceil(quantile * n);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank && counts[i] > 0) {
+                return Math.min(upperBound(i), getMaxNanos());
+            }
+        }
+        return 0;
+    }
+}
+
+class LockStats {
+    private LongAdder acquisitions = new LongAdder();
+    private LongAdder waitNanos = new LongAdder();
+    private LongAdder holdNanos = new LongAdder();
+    private LongAccumulator maxWaitNanos = new LongAccumulator(Math::max, 0);
+
+    void acquired(long waited) {
+        acquisitions.increment();
+        waitNanos.add(waited);
+        maxWaitNanos.accumulate(waited);
+    }
+
+    void released(long held) {
+        holdNanos.add(held);
+    }
+
+    public long getAcquisitions() {
+        return acquisitions.sum();
+    }
+
+    public long getWaitNanos() {
+        return waitNanos.sum();
+    }
+
+    public long getHoldNanos() {
+        return holdNanos.sum();
+    }
+
+    public long getMaxWaitNanos() {
+        return maxWaitNanos.get();
+    }
+}
+
+class SchedulerMetrics {
+    private LatencyHistogram admissions = new LatencyHistogram();
+    private LatencyHistogram cancellations = new LatencyHistogram();
+    private LongAdder[] rejections = new LongAdder[RejectionReason.values().length];
+
+    SchedulerMetrics() {
+        for (int i = 0; i < rejections.length; i++) {
+            rejections[i] = new LongAdder();
+        }
+    }
+
+    public LatencyHistogram getAdmissions() {
+        return admissions;
+    }
+
+    public LatencyHistogram getCancellations() {
+        return cancellations;
+    }
+
+    void rejected(RejectionReason reason) {
+        rejections[reason.ordinal()].increment();
+    }
+
+    public long getRejections(RejectionReason reason) {
+        return rejections[reason.ordinal()].sum();
+    }
+}
+
+// Point-in-time copy of the scheduler's metrics, safe to keep and compare
+class MetricsSnapshot {
+    private long admissions;
+    private long[] admissionNanos;
+    private long cancellations;
+    private long[] cancellationNanos;
+    private Map<RejectionReason, Long> rejections = new EnumMap<>(RejectionReason.class);
+    private long liveReservations;
+    private long reclaimedReservations;
+    private long admittedSchedules;
+    private int activeRuns;
+    private Map<String, long[]> platformLocks = new TreeMap<>();
+
+    MetricsSnapshot(SchedulerMetrics metrics, Collection<Platform> platforms, long reclaimedReservations,
+                    long admittedSchedules, int activeRuns) {
+        this.admissions = metrics.getAdmissions().getCount();
+        this.admissionNanos = percentiles(metrics.getAdmissions());
+        this.cancellations = metrics.getCancellations().getCount();
+        this.cancellationNanos = percentiles(metrics.getCancellations());
+        for (RejectionReason reason : RejectionReason.values()) {
+            rejections.put(reason, metrics.getRejections(reason));
+        }
+        for (Platform platform : platforms) {
+            liveReservations += platform.getReservationCount();
+            LockStats stats = platform.getLockStats();
+            if (stats != null) {
+                platformLocks.put(platform.getStation().getName() + " Platform " + platform.getNumber(), new long[] {
+                        stats.getAcquisitions(), stats.getWaitNanos(), stats.getHoldNanos(), stats.getMaxWaitNanos(),
+                        platform.getReservationCount()});
+            }
+        }
+        this.reclaimedReservations = reclaimedReservations;
+        this.admittedSchedules = admittedSchedules;
+        this.activeRuns = activeRuns;
+    }
+
+    private static long[] percentiles(LatencyHistogram histogram) {
+        return new long[] {histogram.getMeanNanos(), histogram.getPercentileNanos(0.5), histogram.getPercentileNanos(0.99),
+                histogram.getPercentileNanos(0.999), histogram.getMaxNanos()};
+    }
+
+    public long getAdmissions() {
+        return admissions;
+    }
+
+    // Mean, p50, p99, p99.9 and max, in nanoseconds
+    public long[] getAdmissionNanos() {
+        return admissionNanos.clone();
+    }
+
+    public long getCancellations() {
+        return cancellations;
+    }
+
+    public long[] getCancellationNanos() {
+        return cancellationNanos.clone();
+    }
+
+    public Map<RejectionReason, Long> getRejections() {
+        return Collections.unmodifiableMap(rejections);
+    }
+
+    public long getLiveReservations() {
+        return liveReservations;
+    }
+
+    public long getReclaimedReservations() {
+        return reclaimedReservations;
+    }
+
+    public long getAdmittedSchedules() {
+        return admittedSchedules;
+    }
+
+    public int getActiveRuns() {
+        return activeRuns;
+    }
+
+    // Per platform: lock acquisitions, total wait, total hold, max wait (nanoseconds) and live reservations
+    public Map<String, long[]> getPlatformLocks() {
+        return Collections.unmodifiableMap(platformLocks);
+    }
+
+    @Override
+    public String toString() {
+        return "admissions=" + admissions + " p99=" + admissionNanos[2] / 1000 + "us"
+                + " cancellations=" + cancellations + " p99=" + cancellationNanos[2] / 1000 + "us"
+                + " rejections=" + rejections + " liveReservations=" + liveReservations
+                + " reclaimed=" + reclaimedReservations + " admitted=" + admittedSchedules + " activeRuns=" + activeRuns;
+    }
+}
+
+// How a flexible entry picks among the free platforms it may use
+enum PlatformAssignment {
+    FIRST_FREE {
+        @Override
+        Platform choose(List<Platform> free, long start, long end) {
+            return free.get(0);
+        }
+    },
+    LEAST_LOADED {
+        @Override
+        Platform choose(List<Platform> free, long start, long end) {
+            Platform best = free.get(0);
+            for (Platform platform : free) {
+                if (platform.getReservationCount() < best.getReservationCount()) {
+                    best = platform;
+                }
+            }
+            return best;
+        }
+    },
+    // Packs reservations tightly, keeping long free windows open for later schedules
+    BEST_FIT {
+        @Override
+        Platform choose(List<Platform> free, long start, long end) {
+            Platform best = free.get(0);
+            long bestSlack = best.slackSeconds(start, end);
+            for (Platform platform : free) {
+                long slack = platform.slackSeconds(start, end);
+                if (slack < bestSlack) {
+                    best = platform;
+                    bestSlack = slack;
+                }
+            }
+            return best;
+        }
+    };
+
+    abstract Platform choose(List<Platform> free, long start, long end);
+}
+
+enum AdmissionMode {
+    // Lock every platform, then check and reserve
+    PESSIMISTIC,
+    // Check against versioned snapshots without locks, lock only to validate and commit
+    OPTIMISTIC
+}
+
+/*
+ * Append-only binary log of station registrations, admissions and cancellations, written through a
+ * memory-mapped file. Appends only copy bytes into the mapping; a background thread forces them to
+ * disk every commit interval, so one msync covers every record appended since the last one. Records
+ * are framed as [length][crc32][payload] and the length is written last, so a torn append is simply
+ * dropped on recovery.
+ *
+ * Each admission carries a sequence number, and cancellations name that number rather than the
+ * train id, because the same train may be admitted more than once (on different days, say).
+ *
+ * A checkpoint writes every live schedule to a snapshot and starts an empty journal with the next
+ * epoch. Recovery loads the snapshot, then replays the journal only if it carries the same epoch.
+ */
+class ReservationJournal implements Closeable {
+    private static final int MAGIC = 0x54524a32;
+    private static final int HEADER_SIZE = 12;
+    private static final int INITIAL_CAPACITY = 1 << 24;
+    private static final byte STATION = 1;
+    private static final byte ADMIT = 2;
+    private static final byte CANCEL = 3;
+
+    private Path journalPath;
+    private Path snapshotPath;
+    private FileChannel channel;
+    private MappedByteBuffer mapped;
+    private long epoch;
+    private int written;
+    private int forced;
+    private ReentrantLock lock = new ReentrantLock();
+    private ByteBuffer scratch = ByteBuffer.allocate(4096);
+    private CRC32 crc = new CRC32();
+    // Station numbers count STATION records since the last checkpoint, snapshot first, then journal
+    private Map<Station, Integer> stationIndex = new HashMap<>();
+    private int stationCount;
+    private List<Station> recoveredStations = new ArrayList<>();
+    private long nextSequence;
+    private ScheduledExecutorService committer;
+
+    public ReservationJournal(Path directory, Duration commitInterval) throws IOException {
+        Files.createDirectories(directory);
+        this.journalPath = directory.resolve("journal.bin");
+        this.snapshotPath = directory.resolve("snapshot.bin");
+        this.channel = FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(INITIAL_CAPACITY, channel.size()));
+        if (mapped.getInt(0) != MAGIC) {
+            writeHeader(0);
+        }
+        this.epoch = mapped.getLong(4);
+        this.written = HEADER_SIZE;
+        this.forced = HEADER_SIZE;
+
+        committer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "journal-group-commit");
+            thread.setDaemon(true);
+            return thread;
+        });
+        committer.scheduleWithFixedDelay(this::sync, commitInterval.toMillis(), commitInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /*
+     * Rebuilds the schedules that were live when the journal was last written, keyed by admission
+     * sequence, registering any station the scheduler does not know yet. Later appends continue
+     * after the last intact record.
+     */
+    public Map<Long, TrainSchedule> replay(TrainScheduler scheduler) throws IOException {
+        lock.lock();
+        try {
+            Map<Long, TrainSchedule> schedules = new LinkedHashMap<>();
+            stationIndex.clear();
+            stationCount = 0;
+            recoveredStations.clear();
+            nextSequence = 0;
+            // Epoch 0 is the journal before the first checkpoint, which has no snapshot
+            long snapshotEpoch = 0;
+            if (Files.exists(snapshotPath)) {
+                try (FileChannel snapshot = FileChannel.open(snapshotPath, StandardOpenOption.READ)) {
+                    ByteBuffer buffer = snapshot.map(FileChannel.MapMode.READ_ONLY, 0, snapshot.size());
+                    if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+                        throw new IOException("Not a reservation snapshot: " + snapshotPath);
+                    }
+                    snapshotEpoch = buffer.getLong(4);
+                    readRecords(buffer, scheduler, schedules);
+                }
+            }
+            if (snapshotEpoch == epoch) {
+                written = readRecords(mapped, scheduler, schedules);
+            } else if (snapshotEpoch > epoch) {
+                // The checkpoint finished but the journal was never restarted; its records are all in the
+                // snapshot. Their extent was never read, so the whole mapping is cleared
+                resetJournal(snapshotEpoch, mapped.capacity());
+            } else {
+                throw new IOException("Journal epoch " + epoch + " has no matching snapshot (found epoch " + snapshotEpoch + ")");
+            }
+            forced = written;
+            if (mapped.getInt(written) != 0) {
+                // A torn append was left behind; clear it so it cannot be mistaken for a record later
+                zeroRange(written, mapped.capacity());
+                mapped.force(written, mapped.capacity() - written);
+            }
+            recoveredStations.clear();
+            return schedules;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void recordStation(Station station) {
+        lock.lock();
+        try {
+            appendStation(station);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+     * Publishes the admissions while the journal lock is held, so a checkpoint never sees one
+     * without the other. Room for every record is made first, so a full journal fails the call
+     * before anything is written or published.
+     */
+    public void recordAdmissions(List<ReservationHandle> handles, Runnable publish) {
+        lock.lock();
+        try {
+            long needed = written + 4;
+            for (ReservationHandle handle : handles) {
+                needed += maxRecordBytes(handle);
+            }
+            ensureCapacity(needed);
+            for (ReservationHandle handle : handles) {
+                handle.setJournalSequence(nextSequence++);
+                appendAdmission(handle);
+            }
+            publish.run();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean recordCancellation(ReservationHandle handle, BooleanSupplier unpublish) {
+        lock.lock();
+        try {
+            if (!unpublish.getAsBoolean()) {
+                return false;
+            }
+            ByteBuffer payload = payload(1 + 8);
+            payload.put(CANCEL).putLong(handle.getJournalSequence());
+            append(payload);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Writes a snapshot of the given state and restarts the journal from empty under the next epoch
+    public void checkpoint(Collection<Station> stations, Collection<ReservationHandle> live) throws IOException {
+        lock.lock();
+        Map<Station, Integer> previousIndex = stationIndex;
+        int previousCount = stationCount;
+        boolean durable = false;
+        try {
+            long nextEpoch = epoch + 1;
+            // The snapshot numbers stations afresh; the journal keeps the old numbers until it is durable
+            stationIndex = new HashMap<>();
+            stationCount = 0;
+            Path temporary = snapshotPath.resolveSibling("snapshot.tmp");
+            try (FileChannel snapshot = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putLong(nextEpoch);
+                header.flip();
+                snapshot.write(header);
+                BufferedChannelWriter out = new BufferedChannelWriter(snapshot);
+                for (Station station : stations) {
+                    out.write(frame(encodeStation(station)));
+                }
+                for (ReservationHandle handle : live) {
+                    for (ScheduleEntry entry : handle.getSchedule().getEntries()) {
+                        if (!stationIndex.containsKey(entry.getStation())) {
+                            out.write(frame(encodeStation(entry.getStation())));
+                        }
+                    }
+                    if (handle.getJournalSequence() < 0) {
+                        handle.setJournalSequence(nextSequence++);
+                    }
+                    out.write(frame(encodeAdmission(handle)));
+                }
+                out.flush();
+                snapshot.force(true);
+            }
+            Files.move(temporary, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            durable = true;
+            // Station numbers carry over: the new journal is replayed on top of this snapshot
+            resetJournal(nextEpoch, written);
+        } finally {
+            if (!durable) {
+                stationIndex = previousIndex;
+                stationCount = previousCount;
+            }
+            lock.unlock();
+        }
+    }
+
+    // Forces every record appended so far; the lock is only held to read the current end
+    public void sync() {
+        MappedByteBuffer buffer;
+        int end;
+        long syncedEpoch;
+        lock.lock();
+        try {
+            if (written <= forced) {
+                return;
+            }
+            buffer = mapped;
+            end = written;
+            syncedEpoch = epoch;
+        } finally {
+            lock.unlock();
+        }
+        buffer.force(0, end);
+        lock.lock();
+        try {
+            if (epoch == syncedEpoch && end > forced) {
+                forced = end;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        committer.shutdownNow();
+        sync();
+        channel.close();
+    }
+
+    // Framed size of the admission record plus a station record for each of its entries
+    private static long maxRecordBytes(ReservationHandle handle) {
+        TrainSchedule schedule = handle.getSchedule();
+        long bytes = 8 + 1 + 8 + 2 + 3L * schedule.getTrainId().length() + 4 + 32L * schedule.getEntries().size();
+        for (ScheduleEntry entry : schedule.getEntries()) {
+            bytes += 8 + 1 + 2 + 3L * entry.getStation().getName().length() + 4;
+        }
+        return bytes;
+    }
+
+    private void appendStation(Station station) {
+        if (!stationIndex.containsKey(station)) {
+            append(encodeStation(station));
+        }
+    }
+
+    private void appendAdmission(ReservationHandle handle) {
+        for (ScheduleEntry entry : handle.getSchedule().getEntries()) {
+            appendStation(entry.getStation());
+        }
+        append(encodeAdmission(handle));
+    }
+
+    // Names are stored with a two-byte length, so longer ones are refused rather than cut short
+    static void checkEncodable(String what, String value) {
+        if (value.length() > 0xffff / 3 && value.getBytes(StandardCharsets.UTF_8).length > 0xffff) {
+            throw new IllegalArgumentException(what + " too long to journal: " + value.length() + " characters");
+        }
+    }
+
+    private ByteBuffer encodeStation(Station station) {
+        checkEncodable("Station name", station.getName());
+        byte[] name = station.getName().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = payload(1 + 2 + name.length + 4);
+        payload.put(STATION).putShort((short) name.length).put(name).putInt(station.getPlatforms().size());
+        stationIndex.put(station, stationCount++);
+        return payload;
+    }
+
+    private ByteBuffer encodeAdmission(ReservationHandle handle) {
+        TrainSchedule schedule = handle.getSchedule();
+        checkEncodable("Train id", schedule.getTrainId());
+        byte[] trainId = schedule.getTrainId().getBytes(StandardCharsets.UTF_8);
+        List<ScheduleEntry> entries = schedule.getEntries();
+        ByteBuffer payload = payload(1 + 8 + 2 + trainId.length + 4 + entries.size() * 32);
+        payload.put(ADMIT).putLong(handle.getJournalSequence())
+                .putShort((short) trainId.length).put(trainId).putInt(entries.size());
+        for (ScheduleEntry entry : entries) {
+            payload.putInt(stationIndex.get(entry.getStation()))
+                    .putInt(entry.getPlatform())
+                    .putLong(entry.getArrivalTime().toEpochSecond(ZoneOffset.UTC))
+                    .putInt(entry.getArrivalTime().getNano())
+                    .putLong(entry.getDepartureTime().toEpochSecond(ZoneOffset.UTC))
+                    .putInt(entry.getDepartureTime().getNano());
+        }
+        return payload;
+    }
+
+    private ByteBuffer payload(int size) {
+        if (scratch.capacity() < size) {
+            scratch = ByteBuffer.allocate(Math.max(size, scratch.capacity() * 2));
+        }
+        scratch.clear();
+        return scratch;
+    }
+
+    private ByteBuffer frame(ByteBuffer payload) {
+        payload.flip();
+        crc.reset();
+        crc.update(payload.duplicate());
+        ByteBuffer framed = ByteBuffer.allocate(8 + payload.remaining());
+        framed.putInt(payload.remaining()).putInt((int) crc.getValue()).put(payload);
+        framed.flip();
+        return framed;
+    }
+
+    private void append(ByteBuffer payload) {
+        payload.flip();
+        int length = payload.remaining();
+        ensureCapacity(written + 8 + length + 4);
+        crc.reset();
+        crc.update(payload.duplicate());
+        mapped.put(written + 8, payload, 0, length);
+        mapped.putInt(written + 4, (int) crc.getValue());
+        mapped.putInt(written, length);
+        written += 8 + length;
+    }
+
+    private void ensureCapacity(long needed) {
+        if (needed <= mapped.capacity()) {
+            return;
+        }
+        long capacity = mapped.capacity();
+        while (capacity < needed) {
+            capacity *= 2;
+        }
+        if (capacity > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Journal full; take a checkpoint");
+        }
+        try {
+            mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Returns the offset just past the last intact record
+    private int readRecords(ByteBuffer buffer, TrainScheduler scheduler, Map<Long, TrainSchedule> schedules) {
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            return HEADER_SIZE;
+        }
+        int position = HEADER_SIZE;
+        while (position + 8 <= buffer.limit()) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + 8 + length > buffer.limit()) {
+                break;
+            }
+            ByteBuffer record = buffer.slice(position + 8, length);
+            crc.reset();
+            crc.update(record.duplicate());
+            if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+                break;
+            }
+            decode(record, scheduler, schedules);
+            position += 8 + length;
+        }
+        return position;
+    }
+
+    private void decode(ByteBuffer record, TrainScheduler scheduler, Map<Long, TrainSchedule> schedules) {
+        byte type = record.get();
+        if (type == STATION) {
+            String name = readString(record);
+            int platforms = record.getInt();
+            Station station = scheduler.getStation(name);
+            if (station == null) {
+                station = new Station(name, platforms);
+                scheduler.addStation(station);
+            }
+            recoveredStations.add(station);
+            stationIndex.put(station, stationCount++);
+        } else if (type == ADMIT) {
+            long sequence = record.getLong();
+            nextSequence = Math.max(nextSequence, sequence + 1);
+            String trainId = readString(record);
+            int count = record.getInt();
+            List<ScheduleEntry> entries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                Station station = recoveredStations.get(record.getInt());
+                int platform = record.getInt();
+                LocalDateTime arrival = LocalDateTime.ofEpochSecond(record.getLong(), record.getInt(), ZoneOffset.UTC);
+                LocalDateTime departure = LocalDateTime.ofEpochSecond(record.getLong(), record.getInt(), ZoneOffset.UTC);
+                entries.add(new ScheduleEntry(station, platform, arrival, departure));
+            }
+            schedules.put(sequence, new TrainSchedule(trainId, entries));
+        } else if (type == CANCEL) {
+            schedules.remove(record.getLong());
+        }
+    }
+
+    private static String readString(ByteBuffer record) {
+        byte[] bytes = new byte[record.getShort() & 0xffff];
+        record.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void writeHeader(long headerEpoch) {
+        mapped.putInt(0, MAGIC);
+        mapped.putLong(4, headerEpoch);
+    }
+
+    /*
+     * Pages of a mapping reach the disk in no particular order, so the old records are zeroed and
+     * forced before the new epoch is written; otherwise a crash could leave them on disk under it.
+     */
+    private void resetJournal(long nextEpoch, int end) {
+        written = HEADER_SIZE;
+        zeroRange(HEADER_SIZE, end);
+        mapped.force(HEADER_SIZE, Math.max(end - HEADER_SIZE, 0));
+        writeHeader(nextEpoch);
+        mapped.force(0, HEADER_SIZE);
+        epoch = nextEpoch;
+        forced = HEADER_SIZE;
+    }
+
+    private void zeroRange(int from, int to) {
+        byte[] zeros = new byte[Math.min(Math.max(to - from, 0), 1 << 16)];
+        for (int position = from; position < to; position += zeros.length) {
+            mapped.put(position, zeros, 0, Math.min(zeros.length, to - position));
+        }
+    }
+
+    private static class BufferedChannelWriter {
+        private FileChannel channel;
+        private ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+
+        BufferedChannelWriter(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        void write(ByteBuffer record) throws IOException {
+            if (record.remaining() > buffer.remaining()) {
+                flush();
+            }
+            if (record.remaining() > buffer.capacity()) {
+                while (record.hasRemaining()) {
+                    channel.write(record);
+                }
+                return;
+            }
+            buffer.put(record);
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+}
+
+class ImportReport {
+    private static final int MAX_PROBLEMS = 100;
+
+    private long rows;
+    private long admitted;
+    private long rejected;
+    private List<String> problems = new ArrayList<>();
+
+    synchronized void addRows(long count) {
+        rows += count;
+    }
+
+    synchronized void admitted(long count) {
+        admitted += count;
+    }
+
+    synchronized void rejected(String problem) {
+        rejected++;
+        if (problems.size() < MAX_PROBLEMS) {
+            problems.add(problem);
+        }
+    }
+
+    public synchronized long getRows() {
+        return rows;
+    }
+
+    public synchronized long getAdmitted() {
+        return admitted;
+    }
+
+    public synchronized long getRejected() {
+        return rejected;
+    }
+
+    // The first problems found; later ones are only counted
+    public synchronized List<String> getProblems() {
+        return new ArrayList<>(problems);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return rows + " rows, " + admitted + " trains admitted, " + rejected + " rejected";
+    }
+}
+
+/*
+ * Streams a stop_times style CSV into a scheduler:
+ *
+ *     train_id,station,platform,arrival,departure
+ *     T100,Central,2,2024-01-01T08:00,2024-01-01T08:02
+ *     T100,Harbour,*,08:15:00,08:16:00
+ *
+ * Rows of one train must be contiguous. Times are ISO date-times or GTFS-style HH:MM:SS offsets from
+ * the service date, which may run past 24:00:00. A platform of "*" or blank lets the scheduler assign
+ * one. The reader cuts the file into chunks on train boundaries; worker threads parse, validate and
+ * admit each chunk as one batch, falling back to one train at a time if the batch conflicts. Only a
+ * bounded number of chunks is ever in flight, so memory stays flat however long the file is.
+ */
+class TimetableImporter {
+    private static final int CHUNK_ROWS = 8192;
+
+    private TrainScheduler scheduler;
+    private LocalDate serviceDate;
+    private int defaultPlatformCount;
+    private int workers = Runtime.getRuntime().availableProcessors();
+    // Station names are resolved once, so every entry of a station shares one Station and one name
+    private Map<String, Station> stations = new ConcurrentHashMap<>();
+
+    public TimetableImporter(TrainScheduler scheduler, LocalDate serviceDate) {
+        this.scheduler = scheduler;
+        this.serviceDate = serviceDate;
+    }
+
+    // Unknown stations are created with this many platforms; 0, the default, rejects their trains instead
+    public TimetableImporter setDefaultPlatformCount(int defaultPlatformCount) {
+        this.defaultPlatformCount = defaultPlatformCount;
+        return this;
+    }
+
+    public TimetableImporter setWorkers(int workers) {
+        this.workers = workers;
+        return this;
+    }
+
+    public ImportReport importFrom(Path path) throws IOException, InterruptedException {
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            return importFrom(reader);
+        }
+    }
+
+    public ImportReport importFrom(Reader source) throws IOException, InterruptedException {
+        BufferedReader reader = source instanceof BufferedReader ? (BufferedReader) source : new BufferedReader(source, 1 << 16);
+        ImportReport report = new ImportReport();
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        // Chunks are parsed in parallel but admitted one at a time in file order, so conflicts resolve the same way every run
+        ExecutorService admitter = Executors.newSingleThreadExecutor();
+        Semaphore inFlight = new Semaphore(workers * 2);
+        List<Future<?>> pending = new ArrayList<>();
+        try {
+            List<String> chunk = new ArrayList<>(CHUNK_ROWS);
+            long firstLine = 1;
+            long lineNumber = 0;
+            String line;
+            String lastTrain = null;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isEmpty() || line.startsWith("#") || (lineNumber == 1 && line.startsWith("train_id"))) {
+                    line = "";
+                }
+                String train = line.isEmpty() ? lastTrain : line.substring(0, Math.max(line.indexOf(','), 0));
+                if (chunk.size() >= CHUNK_ROWS && !Objects.equals(train, lastTrain)) {
+                    submit(pool, admitter, inFlight, pending, chunk, firstLine, report);
+                    chunk = new ArrayList<>(CHUNK_ROWS);
+                    firstLine = lineNumber;
+                }
+                chunk.add(line);
+                lastTrain = train;
+            }
+            submit(pool, admitter, inFlight, pending, chunk, firstLine, report);
+            for (Future<?> future : pending) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            // An admit step fails with its chunk's parse failure wrapped once more
+            Throwable cause = e.getCause();
+            while (cause instanceof ExecutionException && cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            throw new IllegalStateException("Import worker failed", cause);
+        } finally {
+            pool.shutdownNow();
+            admitter.shutdownNow();
+        }
+        return report;
+    }
+
+    private void submit(ExecutorService pool, ExecutorService admitter, Semaphore inFlight, List<Future<?>> pending,
+                        List<String> chunk, long firstLine, ImportReport report) throws InterruptedException, ExecutionException {
+        if (chunk.isEmpty()) {
+            return;
+        }
+        inFlight.acquire();
+        // Finished chunks are dropped only after get(), so a failed one stops the import here
+        for (Iterator<Future<?>> it = pending.iterator(); it.hasNext(); ) {
+            Future<?> future = it.next();
+            if (future.isDone()) {
+                future.get();
+                it.remove();
+            }
+        }
+        Future<List<TrainSchedule>> parsed = pool.submit(() -> parse(chunk, firstLine, report));
+        pending.add(parsed);
+        pending.add(admitter.submit(() -> {
+            try {
+                admit(parsed.get(), report);
+                return null;
+            } finally {
+                inFlight.release();
+            }
+        }));
+    }
+
+    private List<TrainSchedule> parse(List<String> lines, long firstLine, ImportReport report) {
+        List<TrainSchedule> schedules = new ArrayList<>();
+        String trainId = null;
+        List<ScheduleEntry> entries = new ArrayList<>();
+        String problem = null;
+        long rows = 0;
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i);
+            if (line.isEmpty()) {
+                continue;
+            }
+            rows++;
+            String[] fields = split(line);
+            int comma = line.indexOf(',');
+            if (fields == null && comma < 0) {
+                // Not even a train id to blame
+                report.rejected("Line " + (firstLine + i) + ": expected 5 fields");
+                continue;
+            }
+            String rowTrain = fields == null ? line.substring(0, comma).trim() : fields[0];
+            if (!rowTrain.equals(trainId)) {
+                finish(trainId, entries, problem, schedules, report);
+                trainId = rowTrain;
+                entries = new ArrayList<>();
+                problem = null;
+            }
+            if (problem != null) {
+                continue;
+            }
+            if (fields == null) {
+                // A train missing a stop must not be admitted without it
+                problem = "Line " + (firstLine + i) + ": expected 5 fields";
+                continue;
+            }
+            try {
+                ScheduleEntry entry = parseEntry(fields);
+                ScheduleEntry previous = entries.isEmpty() ? null : entries.get(entries.size() - 1);
+                if (entry.getDepartureNanos() < entry.getArrivalNanos()) {
+                    problem = "departs before it arrives";
+                } else if (previous != null && entry.getArrivalNanos() < previous.getDepartureNanos()) {
+                    problem = "arrives before leaving the previous stop";
+                } else {
+                    entries.add(entry);
+                }
+            } catch (RuntimeException e) {
+                problem = e.getMessage();
+            }
+            if (problem != null) {
+                problem = "Line " + (firstLine + i) + ": " + problem;
+            }
+        }
+        finish(trainId, entries, problem, schedules, report);
+        report.addRows(rows);
+        return schedules;
+    }
+
+    private static void finish(String trainId, List<ScheduleEntry> entries, String problem,
+                               List<TrainSchedule> schedules, ImportReport report) {
+        if (trainId == null) {
+            return;
+        }
+        if (problem != null) {
+            report.rejected("Train " + trainId + ": " + problem);
+        } else {
+            schedules.add(new TrainSchedule(trainId, entries));
+        }
+    }
+
+    private ScheduleEntry parseEntry(String[] fields) {
+        Station station = station(fields[1]);
+        LocalDateTime arrival = parseTime(fields[3]);
+        LocalDateTime departure = parseTime(fields[4]);
+        String platform = fields[2];
+        if (platform.isEmpty() || platform.equals("*")) {
+            return new ScheduleEntry(station, ScheduleEntry.ANY_PLATFORM, arrival, departure);
+        }
+        int number = Integer.parseInt(platform);
+        if (station.getPlatform(number) == null) {
+            throw new IllegalArgumentException("no platform " + number + " at " + station.getName());
+        }
+        return new ScheduleEntry(station, number, arrival, departure);
+    }
+
+    private Station station(String name) {
+        Station station = stations.get(name);
+        if (station != null) {
+            return station;
+        }
+        synchronized (stations) {
+            station = scheduler.getStation(name);
+            if (station == null) {
+                if (defaultPlatformCount <= 0) {
+                    throw new IllegalArgumentException("unknown station " + name);
+                }
+                station = new Station(name, defaultPlatformCount);
+                scheduler.addStation(station);
+            }
+            stations.put(name, station);
+            return station;
+        }
+    }
+
+    private LocalDateTime parseTime(String text) {
+        if (text.indexOf('T') >= 0 || text.indexOf('-') >= 0) {
+            return LocalDateTime.parse(text);
+        }
+        int firstColon = text.indexOf(':');
+        int secondColon = text.indexOf(':', firstColon + 1);
+        if (firstColon < 0) {
+            throw new IllegalArgumentException("bad time " + text);
+        }
+        long hours = Long.parseLong(text, 0, firstColon, 10);
+        long minutes = Long.parseLong(text, firstColon + 1, secondColon < 0 ? text.length() : secondColon, 10);
+        long seconds = secondColon < 0 ? 0 : Long.parseLong(text, secondColon + 1, text.length(), 10);
+        return serviceDate.atStartOfDay().plusSeconds(hours * 3600 + minutes * 60 + seconds);
+    }
+
+    // Splits the five comma separated fields without a regex; null if the count is wrong
+    private static String[] split(String line) {
+        String[] fields = new String[5];
+        int start = 0;
+        for (int i = 0; i < 4; i++) {
+            int comma = line.indexOf(',', start);
+            if (comma < 0) {
+                return null;
+            }
+            fields[i] = line.substring(start, comma).trim();
+            start = comma + 1;
+        }
+        if (line.indexOf(',', start) >= 0) {
+            return null;
+        }
+        fields[4] = line.substring(start).trim();
+        return fields;
+    }
+
+    private void admit(List<TrainSchedule> schedules, ImportReport report) {
+        if (schedules.isEmpty()) {
+            return;
+        }
+        boolean flexible = false;
+        for (TrainSchedule schedule : schedules) {
+            for (ScheduleEntry entry : schedule.getEntries()) {
+                flexible |= entry.isFlexible();
+            }
+        }
+        if (!flexible && scheduler.addTrainSchedules(schedules).isCommitted()) {
+            report.admitted(schedules.size());
+            return;
+        }
+        long admitted = 0;
+        for (TrainSchedule schedule : schedules) {
+            if (scheduler.addTrainSchedule(schedule)) {
+                admitted++;
+            } else {
+                report.rejected("Train " + schedule.getTrainId() + ": conflicts with an existing reservation");
+            }
+        }
+        report.admitted(admitted);
+    }
+}
+
+/*
+ * Spreads admission work over a fixed set of threads by station, so schedules at unrelated
+ * stations are admitted in parallel. This is only a dispatch layer: every shard works on the same
+ * TrainScheduler, whose platform locks guard each reservation, so queries, cancellations and
+ * compaction keep going to the scheduler directly. A schedule whose stations all belong to one
+ * shard runs on that shard's thread; one that spans shards runs on the thread of its lowest shard
+ * and takes the other shards' platform locks there, in the usual global order. Either way it is
+ * admitted in one step, so no reservation is ever visible before its schedule is admitted.
+ */
+class ShardedDispatcher implements Closeable {
+    private TrainScheduler scheduler;
+    private Shard[] shards;
+    private Map<Station, Integer> assignments = new ConcurrentHashMap<>();
+    private LongAdder crossShardAdmissions = new LongAdder();
+
+    public ShardedDispatcher(TrainScheduler scheduler, int shardCount) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("Need at least one shard: " + shardCount);
+        }
+        this.scheduler = scheduler;
+        this.shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(i);
+        }
+    }
+
+    // Pins a station to a shard; keeping neighbouring stations together keeps most schedules on one shard
+    public void assign(Station station, int shard) {
+        if (shard < 0 || shard >= shards.length) {
+            throw new IllegalArgumentException("No such shard: " + shard);
+        }
+        assignments.put(station, shard);
+    }
+
+    // Stations never assigned are spread by id
+    public int shardOf(Station station) {
+        Integer assigned = assignments.get(station);
+        return assigned != null ? assigned : Math.floorMod(station.getId(), shards.length);
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    // Completes with the handle, or with null if the schedule was rejected
+    public CompletableFuture<ReservationHandle> submit(TrainSchedule schedule) {
+        int lowest = Integer.MAX_VALUE;
+        boolean crossShard = false;
+        for (ScheduleEntry entry : schedule.getEntries()) {
+            int shard = shardOf(entry.getStation());
+            crossShard |= lowest != Integer.MAX_VALUE && shard != lowest;
+            lowest = Math.min(lowest, shard);
+        }
+        Shard shard = shards[lowest == Integer.MAX_VALUE ? 0 : lowest];
+        if (crossShard) {
+            crossShardAdmissions.increment();
+        } else {
+            shard.admissions.increment();
+        }
+        return CompletableFuture.supplyAsync(() -> scheduler.admitTrainSchedule(schedule), shard.executor);
+    }
+
+    public ReservationHandle admit(TrainSchedule schedule) {
+        return submit(schedule).join();
+    }
+
+    // Runs on the shard of the schedule's first station; the platform locks cover the others
+    public CompletableFuture<Boolean> cancel(TrainSchedule schedule) {
+        Shard shard = shards[schedule.getEntries().isEmpty() ? 0 : shardOf(schedule.getEntries().get(0).getStation())];
+        return CompletableFuture.supplyAsync(() -> scheduler.cancelTrainSchedule(schedule), shard.executor);
+    }
+
+    public long getSingleShardAdmissions(int shard) {
+        return shards[shard].admissions.sum();
+    }
+
+    // Admissions that touched stations of more than one shard
+    public long getCrossShardAdmissions() {
+        return crossShardAdmissions.sum();
+    }
+
+    // Finishes queued work, then stops the shard threads; the scheduler itself stays up
+    @Override
+    public void close() {
+        for (Shard shard : shards) {
+            shard.executor.shutdown();
+        }
+        try {
+            for (Shard shard : shards) {
+                shard.executor.awaitTermination(1, TimeUnit.MINUTES);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private class Shard {
+        private ExecutorService executor;
+        private LongAdder admissions = new LongAdder();
+
+        Shard(int index) {
+            executor = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, "scheduler-shard-" + index);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}
+
+public class TrainScheduler {
+    private static final int MAX_OPTIMISTIC_ATTEMPTS = 8;
+    // Reservations reclaimed per lock hold, so a compaction pass never holds a platform for long
+    private static final int COMPACTION_CHUNK = 256;
+    private static final Comparator<Platform> PLATFORM_ORDER = Comparator.comparingInt(Platform::getId);
+
+    private List<Station> stations = new ArrayList<>();
+    private Map<String, Station> stationsByName = new ConcurrentHashMap<>();
+    private Map<Integer, Station> stationsById = new ConcurrentHashMap<>();
+    private Map<Integer, Platform> platformsById = new ConcurrentHashMap<>();
+    private Map<TrainSchedule, ReservationHandle> admitted = new ConcurrentHashMap<>();
+    private TrainRunner runner;
+    private AdmissionMode admissionMode = AdmissionMode.PESSIMISTIC;
+    private PlatformAssignment platformAssignment = PlatformAssignment.LEAST_LOADED;
+    private AtomicLong reclaimedReservations = new AtomicLong();
+    private ScheduledExecutorService retention;
+    private ScheduledExecutorService checkpoints;
+    // Set when a scheduled checkpoint fails, until stopCheckpoints reports it
+    private volatile Exception checkpointFailure;
+    private volatile ReservationJournal journal;
+    private TrainEventPipeline events;
+    // Null while metrics are disabled, so the hot paths pay a single read
+    private volatile SchedulerMetrics metrics;
+    private ObjectName metricsName;
+
+    public TrainScheduler() {
+        this(new EventLoopRunner());
+    }
+
+    public TrainScheduler(TrainRunner runner) {
+        this(runner, TrainEventPipeline.console());
+    }
+
+    // Arrivals, departures and cancellations of admitted trains go to the given pipeline
+    public TrainScheduler(TrainRunner runner, TrainEventPipeline events) {
+        this.runner = runner;
+        this.events = events;
+    }
+
+    public void addStation(Station station) {
+        if (journal != null) {
+            ReservationJournal.checkEncodable("Station name", station.getName());
+        }
+        if (stationsByName.putIfAbsent(station.getName(), station) != null) {
+            throw new IllegalArgumentException("Station already registered: " + station.getName());
+        }
+        ReservationJournal current = journal;
+        if (current != null) {
+            current.recordStation(station);
+        }
+        synchronized (stations) {
+            stations.add(station);
+        }
+        stationsById.put(station.getId(), station);
+        for (Platform platform : station.getPlatforms()) {
+            platformsById.put(platform.getId(), platform);
+            if (metrics != null) {
+                platform.setLockStats(new LockStats());
+            }
+        }
+    }
+
+    public Station getStation(String name) {
+        return stationsByName.get(name);
+    }
+
+    public Station getStation(int stationId) {
+        return stationsById.get(stationId);
+    }
+
+    public Platform getPlatform(int platformId) {
+        return platformsById.get(platformId);
+    }
+
+    public List<Station> getStations() {
+        synchronized (stations) {
+            return new ArrayList<>(stations);
+        }
+    }
+
+    // Null if no such platform is registered
+    public LocalDateTime findEarliestWindow(int platformId, LocalDateTime after, Duration duration) {
+        Platform platform = platformsById.get(platformId);
+        return platform == null ? null : platform.findEarliestWindow(after, duration);
+    }
+
+    public LocalDateTime findEarliestWindow(String stationName, int platformNumber, LocalDateTime after, Duration duration) {
+        Station station = stationsByName.get(stationName);
+        Platform platform = station == null ? null : station.getPlatform(platformNumber);
+        return platform == null ? null : platform.findEarliestWindow(after, duration);
+    }
+
+    // Empty if no such station is registered
+    public List<Platform> findFreePlatforms(String stationName, LocalDateTime start, LocalDateTime end) {
+        Station station = stationsByName.get(stationName);
+        return station == null ? Collections.emptyList() : station.findFreePlatforms(start, end);
+    }
+
+    public void setAdmissionMode(AdmissionMode admissionMode) {
+        this.admissionMode = admissionMode;
+    }
+
+    public AdmissionMode getAdmissionMode() {
+        return admissionMode;
+    }
+
+    public void setPlatformAssignment(PlatformAssignment platformAssignment) {
+        this.platformAssignment = platformAssignment;
+    }
+
+    public PlatformAssignment getPlatformAssignment() {
+        return platformAssignment;
+    }
+
+    public boolean addTrainSchedule(TrainSchedule schedule) {
+        return admitTrainSchedule(schedule) != null;
+    }
+
+    // Returns the handle that cancels exactly this admission, or null if the schedule was rejected
+    public ReservationHandle admitTrainSchedule(TrainSchedule schedule) {
+        SchedulerMetrics current = metrics;
+        if (current == null) {
+            return admit(schedule);
+        }
+        long started = System.nanoTime();
+        ReservationHandle handle = admit(schedule);
+        current.getAdmissions().record(System.nanoTime() - started);
+        return handle;
+    }
+
+    private ReservationHandle admit(TrainSchedule schedule) {
+        checkJournalable(schedule);
+        for (ScheduleEntry entry : schedule.getEntries()) {
+            if (entry.isFlexible()) {
+                return addWithAssignment(schedule);
+            }
+        }
+
+        List<Platform> platformsToReserve = new ArrayList<>();
+        for (ScheduleEntry entry : schedule.getEntries()) {
+            Platform platform = entry.resolvePlatform();
+            if (platform == null) {
+                return rejected(RejectionReason.NO_SUCH_PLATFORM);
+            }
+            if (entry.getDepartureNanos() < entry.getArrivalNanos()) {
+                return rejected(RejectionReason.DEPARTS_BEFORE_ARRIVAL);
+            }
+            // Stored slots never overlap, so two stops of this schedule may not share a platform's time either
+            if (takenEarlier(schedule, platformsToReserve, platform, entry)) {
+                return rejected(RejectionReason.PLATFORM_BUSY);
+            }
+            platformsToReserve.add(platform);
+        }
+
+        if (admissionMode == AdmissionMode.OPTIMISTIC) {
+            return addOptimistically(schedule, platformsToReserve);
+        }
+        return addPessimistically(schedule, platformsToReserve);
+    }
+
+    private ReservationHandle addPessimistically(TrainSchedule schedule, List<Platform> platformsToReserve) {
+        List<Platform> lockOrder = lockOrder(platformsToReserve);
+
+        try {
+            for (Platform p : lockOrder) {
+                p.lock();
+            }
+
+            if (!isScheduleAvailable(schedule, platformsToReserve)) {
+                return rejected(RejectionReason.PLATFORM_BUSY);
+            }
+            return reserve(schedule, platformsToReserve);
+        } finally {
+            unlockAll(lockOrder);
+        }
+    }
+
+    /*
+     * Locks every platform any entry may use, then picks one free platform per entry with the
+     * configured policy. Picks made earlier in the same schedule count as taken, and flexible
+     * entries only learn their platform once the whole schedule is committed.
+     */
+    private ReservationHandle addWithAssignment(TrainSchedule schedule) {
+        List<List<Platform>> candidates = new ArrayList<>();
+        List<Platform> lockSet = new ArrayList<>();
+        for (ScheduleEntry entry : schedule.getEntries()) {
+            List<Platform> entryCandidates = entry.candidatePlatforms();
+            if (entryCandidates.isEmpty()) {
+                return rejected(RejectionReason.NO_SUCH_PLATFORM);
+            }
+            if (entry.getDepartureNanos() < entry.getArrivalNanos()) {
+                return rejected(RejectionReason.DEPARTS_BEFORE_ARRIVAL);
+            }
+            candidates.add(entryCandidates);
+            lockSet.addAll(entryCandidates);
+        }
+
+        List<Platform> lockOrder = lockOrder(lockSet);
+        try {
+            for (Platform p : lockOrder) {
+                p.lock();
+            }
+
+            List<Platform> chosen = new ArrayList<>();
+            List<Platform> free = new ArrayList<>();
+            for (int i = 0; i < schedule.getEntries().size(); i++) {
+                ScheduleEntry entry = schedule.getEntries().get(i);
+                free.clear();
+                for (Platform candidate : candidates.get(i)) {
+                    if (isPlatformAvailable(candidate, entry.getArrivalNanos(), entry.getDepartureNanos())
+                            && !takenEarlier(schedule, chosen, candidate, entry)) {
+                        free.add(candidate);
+                    }
+                }
+                if (free.isEmpty()) {
+                    return rejected(RejectionReason.NO_FREE_PLATFORM);
+                }
+                chosen.add(platformAssignment.choose(free, entry.getArrivalNanos(), entry.getDepartureNanos()));
+            }
+
+            for (int i = 0; i < schedule.getEntries().size(); i++) {
+                ScheduleEntry entry = schedule.getEntries().get(i);
+                if (entry.isFlexible()) {
+                    entry.assignPlatform(chosen.get(i).getNumber());
+                }
+            }
+            return reserve(schedule, chosen);
+        } finally {
+            unlockAll(lockOrder);
+        }
+    }
+
+    private ReservationHandle rejected(RejectionReason reason) {
+        SchedulerMetrics current = metrics;
+        if (current != null) {
+            current.rejected(reason);
+        }
+        return null;
+    }
+
+    private static boolean takenEarlier(TrainSchedule schedule, List<Platform> chosen, Platform candidate, ScheduleEntry entry) {
+        for (int j = 0; j < chosen.size(); j++) {
+            ScheduleEntry earlier = schedule.getEntries().get(j);
+            if (chosen.get(j) == candidate && earlier.getArrivalNanos() < entry.getDepartureNanos()
+                    && earlier.getDepartureNanos() > entry.getArrivalNanos()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Checks availability with no locks held, then locks only to confirm that none of the
+     * platforms changed since they were read and to commit. Falls back to the pessimistic
+     * path if contention keeps invalidating the snapshot.
+     */
+    private ReservationHandle addOptimistically(TrainSchedule schedule, List<Platform> platformsToReserve) {
+        List<Platform> lockOrder = lockOrder(platformsToReserve);
+        long[] versions = new long[lockOrder.size()];
+
+        for (int attempt = 0; attempt < MAX_OPTIMISTIC_ATTEMPTS; attempt++) {
+            if (!readVersions(lockOrder, versions)) {
+                Thread.onSpinWait();
+                continue;
+            }
+            boolean available = isScheduleAvailable(schedule, platformsToReserve);
+            if (!available) {
+                // The unlocked slot reads must complete before the versions are re-read
+                VarHandle.loadLoadFence();
+                if (versionsUnchanged(lockOrder, versions)) {
+                    return rejected(RejectionReason.PLATFORM_BUSY);
+                }
+                continue;
+            }
+
+            try {
+                for (Platform p : lockOrder) {
+                    p.lock();
+                }
+                if (versionsUnchanged(lockOrder, versions)) {
+                    return reserve(schedule, platformsToReserve);
+                }
+            } finally {
+                unlockAll(lockOrder);
+            }
+        }
+        return addPessimistically(schedule, platformsToReserve);
+    }
+
+    // False if a writer is mid-update on any of the platforms
+    private static boolean readVersions(List<Platform> platforms, long[] versions) {
+        for (int i = 0; i < platforms.size(); i++) {
+            versions[i] = platforms.get(i).getVersion();
+            if ((versions[i] & 1) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean versionsUnchanged(List<Platform> platforms, long[] versions) {
+        for (int i = 0; i < platforms.size(); i++) {
+            if (platforms.get(i).getVersion() != versions[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isScheduleAvailable(TrainSchedule schedule, List<Platform> platformsToReserve) {
+        for (int i = 0; i < schedule.getEntries().size(); i++) {
+            ScheduleEntry entry = schedule.getEntries().get(i);
+            Platform platform = platformsToReserve.get(i);
+            if (!isPlatformAvailable(platform, entry.getArrivalNanos(), entry.getDepartureNanos())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Caller holds the locks of every platform in platformsToReserve
+    private ReservationHandle reserve(TrainSchedule schedule, List<Platform> platformsToReserve) {
+        ReservationHandle handle = new ReservationHandle(schedule, platformsToReserve);
+        handle.addReservations();
+        register(List.of(handle));
+        return handle;
+    }
+
+    /*
+     * Runs are started before the handles are published so a cancel always finds them. Callers
+     * hold the platform locks, so if the journal cannot take the admissions they are undone here
+     * before anyone else sees the slots.
+     */
+    private void register(List<ReservationHandle> handles) {
+        for (ReservationHandle handle : handles) {
+            handle.setRun(runner.start(new Train(handle.getSchedule(), runner.getClock(), events)));
+        }
+        ReservationJournal current = journal;
+        if (current == null) {
+            for (ReservationHandle handle : handles) {
+                admitted.put(handle.getSchedule(), handle);
+            }
+            return;
+        }
+        try {
+            current.recordAdmissions(handles, () -> {
+                for (ReservationHandle handle : handles) {
+                    admitted.put(handle.getSchedule(), handle);
+                }
+            });
+        } catch (RuntimeException e) {
+            for (ReservationHandle handle : handles) {
+                handle.getRun().cancel();
+                for (int i = 0; i < handle.getPlatforms().size(); i++) {
+                    handle.removeReservation(i);
+                }
+            }
+            throw e;
+        }
+    }
+
+    // Throws before any platform is touched if the journal could not record the admission
+    private void checkJournalable(TrainSchedule schedule) {
+        if (journal != null) {
+            ReservationJournal.checkEncodable("Train id", schedule.getTrainId());
+            for (ScheduleEntry entry : schedule.getEntries()) {
+                ReservationJournal.checkEncodable("Station name", entry.getStation().getName());
+            }
+        }
+    }
+
+    private boolean unregister(ReservationHandle handle) {
+        ReservationJournal current = journal;
+        if (current == null) {
+            return admitted.remove(handle.getSchedule(), handle);
+        }
+        return current.recordCancellation(handle, () -> admitted.remove(handle.getSchedule(), handle));
+    }
+
+    /*
+     * Admits every schedule or none. Entries are grouped per platform so each platform is locked
+     * once and its batch slots are checked against each other and against the existing
+     * reservations. On rejection the result lists every conflict found.
+     */
+    public BatchAdmissionResult addTrainSchedules(Collection<TrainSchedule> schedules) {
+        List<ScheduleConflict> conflicts = new ArrayList<>();
+        List<ReservationHandle> handles = new ArrayList<>(schedules.size());
+        Map<Platform, List<BatchSlot>> slotsByPlatform = new HashMap<>();
+        for (TrainSchedule schedule : schedules) {
+            checkJournalable(schedule);
+        }
+        for (TrainSchedule schedule : schedules) {
+            List<Platform> platforms = new ArrayList<>();
+            for (ScheduleEntry entry : schedule.getEntries()) {
+                Platform platform = entry.resolvePlatform();
+                if (entry.isFlexible()) {
+                    conflicts.add(new ScheduleConflict(schedule, entry, null, "Batch admission needs a fixed platform"));
+                } else if (platform == null) {
+                    conflicts.add(new ScheduleConflict(schedule, entry, null, "No such platform"));
+                } else if (entry.getDepartureNanos() < entry.getArrivalNanos()) {
+                    conflicts.add(new ScheduleConflict(schedule, entry, null, "Departs before it arrives"));
+                }
+                platforms.add(platform);
+            }
+            if (!conflicts.isEmpty()) {
+                continue;
+            }
+            ReservationHandle handle = new ReservationHandle(schedule, platforms);
+            handles.add(handle);
+            List<TimeInterval> intervals = handle.getIntervals();
+            for (int i = 0; i < platforms.size(); i++) {
+                BatchSlot slot = new BatchSlot(schedule, schedule.getEntries().get(i), intervals.get(i));
+                slotsByPlatform.computeIfAbsent(platforms.get(i), p -> new ArrayList<>()).add(slot);
+            }
+        }
+        if (!conflicts.isEmpty()) {
+            rejected(RejectionReason.BATCH_CONFLICT);
+            return new BatchAdmissionResult(false, Collections.emptyList(), conflicts);
+        }
+
+        List<Platform> lockOrder = lockOrder(new ArrayList<>(slotsByPlatform.keySet()));
+        try {
+            for (Platform p : lockOrder) {
+                p.lock();
+            }
+
+            for (Map.Entry<Platform, List<BatchSlot>> platformSlots : slotsByPlatform.entrySet()) {
+                findBatchConflicts(platformSlots.getKey(), platformSlots.getValue(), conflicts);
+            }
+            if (!conflicts.isEmpty()) {
+                rejected(RejectionReason.BATCH_CONFLICT);
+                return new BatchAdmissionResult(false, Collections.emptyList(), conflicts);
+            }
+
+            for (Map.Entry<Platform, List<BatchSlot>> platformSlots : slotsByPlatform.entrySet()) {
+                for (BatchSlot slot : platformSlots.getValue()) {
+                    // Already checked against the platform and the rest of the batch above
+                    platformSlots.getKey().addReservation(slot.interval.getStartNanos(), slot.interval.getEndNanos(), slot.interval.getSchedule());
+                }
+            }
+            register(handles);
+            return new BatchAdmissionResult(true, handles, conflicts);
+        } finally {
+            unlockAll(lockOrder);
+        }
+    }
+
+    /*
+     * Walks the slots in start order. Slots that clear the platform are staged in that same order,
+     * so an earlier batch slot can only clash if it is the last staged one, or one of the
+     * zero-length slots sharing its start that sort just ahead of it.
+     */
+    private static void findBatchConflicts(Platform platform, List<BatchSlot> slots, List<ScheduleConflict> conflicts) {
+        slots.sort((a, b) -> TimeInterval.ORDER.compare(a.interval, b.interval));
+        List<BatchSlot> staged = new ArrayList<>(slots.size());
+        for (BatchSlot slot : slots) {
+            long start = slot.interval.getStartNanos();
+            long end = slot.interval.getEndNanos();
+            TimeInterval existing = platform.findConflict(start, end);
+            if (existing != null) {
+                conflicts.add(new ScheduleConflict(slot.schedule, slot.entry, existing.getSchedule(), "Platform already reserved"));
+                continue;
+            }
+            BatchSlot clash = null;
+            for (int i = staged.size() - 1; i >= 0; i--) {
+                TimeInterval previous = staged.get(i).interval;
+                if (previous.getStartNanos() < end) {
+                    if (previous.getEndNanos() > start) {
+                        clash = staged.get(i);
+                    }
+                    break;
+                }
+            }
+            if (clash != null) {
+                conflicts.add(new ScheduleConflict(slot.schedule, slot.entry, clash.schedule, "Overlaps another schedule in the batch"));
+                conflicts.add(new ScheduleConflict(clash.schedule, clash.entry, slot.schedule, "Overlaps another schedule in the batch"));
+                continue;
+            }
+            staged.add(slot);
+        }
+    }
+
+    private static class BatchSlot {
+        private TrainSchedule schedule;
+        private ScheduleEntry entry;
+        private TimeInterval interval;
+
+        BatchSlot(TrainSchedule schedule, ScheduleEntry entry, TimeInterval interval) {
+            this.schedule = schedule;
+            this.entry = entry;
+            this.interval = interval;
+        }
+    }
+
+    private boolean isPlatformAvailable(Platform platform, long start, long end) {
+        return platform.isAvailable(start, end);
+    }
+
+    // Distinct platforms in a global order so concurrent callers never deadlock
+    private static List<Platform> lockOrder(List<Platform> platforms) {
+        List<Platform> ordered = new ArrayList<>(new LinkedHashSet<>(platforms));
+        ordered.sort(PLATFORM_ORDER);
+        return ordered;
+    }
+
+    private static void unlockAll(List<Platform> lockOrder) {
+        for (int i = lockOrder.size() - 1; i >= 0; i--) {
+            lockOrder.get(i).unlock();
+        }
+    }
+
+    public boolean cancelTrainSchedule(TrainSchedule schedule) {
+        ReservationHandle handle = admitted.get(schedule);
+        return handle != null && cancel(handle);
+    }
+
+    // Removes exactly the intervals this admission added; false if it was already cancelled
+    public boolean cancel(ReservationHandle handle) {
+        SchedulerMetrics current = metrics;
+        if (current == null) {
+            return release(handle);
+        }
+        long started = System.nanoTime();
+        boolean cancelled = release(handle);
+        current.getCancellations().record(System.nanoTime() - started);
+        return cancelled;
+    }
+
+    private boolean release(ReservationHandle handle) {
+        if (!unregister(handle)) {
+            return false;
+        }
+        handle.getRun().cancel();
+
+        List<Platform> lockOrder = lockOrder(handle.getPlatforms());
+        try {
+            for (Platform p : lockOrder) {
+                p.lock();
+            }
+            for (int i = 0; i < handle.getPlatforms().size(); i++) {
+                handle.removeReservation(i);
+            }
+        } finally {
+            unlockAll(lockOrder);
+        }
+        return true;
+    }
+
+    // Cancels many schedules at once, locking each affected platform only once; returns how many were cancelled
+    public int cancelTrainSchedules(Collection<TrainSchedule> schedules) {
+        Map<Platform, List<TimeInterval>> intervalsByPlatform = new HashMap<>();
+        int cancelled = 0;
+        for (TrainSchedule schedule : schedules) {
+            ReservationHandle handle = admitted.get(schedule);
+            if (handle == null || !unregister(handle)) {
+                continue;
+            }
+            handle.getRun().cancel();
+            List<TimeInterval> intervals = handle.getIntervals();
+            for (int i = 0; i < intervals.size(); i++) {
+                intervalsByPlatform.computeIfAbsent(handle.getPlatforms().get(i), p -> new ArrayList<>()).add(intervals.get(i));
+            }
+            cancelled++;
+        }
+
+        List<Platform> lockOrder = lockOrder(new ArrayList<>(intervalsByPlatform.keySet()));
+        try {
+            for (Platform p : lockOrder) {
+                p.lock();
+            }
+            for (Map.Entry<Platform, List<TimeInterval>> platformIntervals : intervalsByPlatform.entrySet()) {
+                for (TimeInterval interval : platformIntervals.getValue()) {
+                    platformIntervals.getKey().removeReservation(interval);
+                }
+            }
+        } finally {
+            unlockAll(lockOrder);
+        }
+        return cancelled;
+    }
+
+    public ReservationHandle getReservation(TrainSchedule schedule) {
+        return admitted.get(schedule);
+    }
+
+    public List<TrainSchedule> getTrainSchedules() {
+        return new ArrayList<>(admitted.keySet());
+    }
+
+    public SimulationClock getClock() {
+        return runner.getClock();
+    }
+
+    public TrainEventPipeline getEvents() {
+        return events;
+    }
+
+    public void startRetention(Duration horizon, Duration period) {
+        startRetention(horizon, period, null);
+    }
+
+    /*
+     * Starts a background task that reclaims reservations which ended more than horizon ago by the
+     * scheduler's clock. Each reclaimed interval is handed to archive first, if one is given. Admissions
+     * never wait on it: busy platforms are skipped until the next pass.
+     */
+    public synchronized void startRetention(Duration horizon, Duration period, Consumer<TimeInterval> archive) {
+        if (retention != null) {
+            retention.shutdownNow();
+        }
+        retention = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "reservation-retention");
+            thread.setDaemon(true);
+            return thread;
+        });
+        retention.scheduleWithFixedDelay(() -> compactReservations(horizon, archive),
+                period.toMillis(), period.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stopRetention() {
+        if (retention != null) {
+            retention.shutdownNow();
+            retention = null;
+        }
+    }
+
+    // One compaction pass; returns the number of reservations reclaimed
+    public int compactReservations(Duration horizon, Consumer<TimeInterval> archive) {
+        LocalDateTime cutoff = getClock().now().minus(horizon);
+        List<TimeInterval> removed = new ArrayList<>();
+        int total = 0;
+        for (Platform platform : platformsById.values()) {
+            int count;
+            do {
+                if (!platform.tryLock()) {
+                    break;
+                }
+                try {
+                    count = platform.removeExpired(cutoff, COMPACTION_CHUNK, removed);
+                } finally {
+                    platform.unlock();
+                }
+                for (TimeInterval interval : removed) {
+                    if (archive != null) {
+                        archive.accept(interval);
+                    }
+                    ReservationHandle handle = admitted.get(interval.getSchedule());
+                    if (handle != null && handle.expireInterval()) {
+                        // Journalled like a cancellation, or recovery would bring the schedule back
+                        unregister(handle);
+                    }
+                }
+                removed.clear();
+                total += count;
+            } while (count == COMPACTION_CHUNK);
+        }
+        reclaimedReservations.addAndGet(total);
+        return total;
+    }
+
+    public long getLiveReservationCount() {
+        long live = 0;
+        for (Platform platform : platformsById.values()) {
+            live += platform.getReservationCount();
+        }
+        return live;
+    }
+
+    public long getReclaimedReservationCount() {
+        return reclaimedReservations.get();
+    }
+
+    /*
+     * Rebuilds stations and live schedules from the journal's snapshot and log in one batch admission,
+     * then journals every later change. Call on a fresh scheduler before admitting anything.
+     */
+    public int recoverFrom(ReservationJournal journal) throws IOException {
+        Map<Long, TrainSchedule> schedules = journal.replay(this);
+        BatchAdmissionResult result = addTrainSchedules(schedules.values());
+        if (!result.isCommitted()) {
+            throw new IllegalStateException("Journal does not replay cleanly: " + result.getConflicts().get(0));
+        }
+        // Handles come back in the order the schedules were given, so later cancels name the right admission
+        Iterator<Long> sequences = schedules.keySet().iterator();
+        for (ReservationHandle handle : result.getHandles()) {
+            handle.setJournalSequence(sequences.next());
+        }
+        this.journal = journal;
+        return schedules.size();
+    }
+
+    public void checkpoint() throws IOException {
+        ReservationJournal current = journal;
+        if (current == null) {
+            throw new IllegalStateException("No journal attached");
+        }
+        current.checkpoint(getStations(), admitted.values());
+    }
+
+    public synchronized void startCheckpoints(Duration period) {
+        stopCheckpoints();
+        checkpoints = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "journal-checkpoint");
+            thread.setDaemon(true);
+            return thread;
+        });
+        checkpoints.scheduleWithFixedDelay(() -> {
+            try {
+                checkpoint();
+            } catch (IOException | RuntimeException e) {
+                checkpointFailure = e;
+                // Throwing ends the periodic schedule; later runs would only fail the same way
+                throw new CompletionException(e);
+            }
+        }, period.toMillis(), period.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    // Also reports, once, a scheduled checkpoint that failed and so stopped the schedule
+    public synchronized void stopCheckpoints() {
+        if (checkpoints != null) {
+            checkpoints.shutdownNow();
+            checkpoints = null;
+        }
+        Exception failure = checkpointFailure;
+        if (failure != null) {
+            checkpointFailure = null;
+            throw new IllegalStateException("Scheduled checkpoint failed; no checkpoint has been taken since", failure);
+        }
+    }
+
+    // The failure that stopped scheduled checkpoints, or null while they are running or were never started
+    public Exception getCheckpointFailure() {
+        return checkpointFailure;
+    }
+
+    /*
+     * Starts timing admissions, cancellations and platform locks, and publishes the metrics as an MXBean
+     * named TrainScheduler:type=Metrics,name=<name>. Until this is called the instrumented paths cost one
+     * null check each.
+     */
+    public synchronized void enableMetrics(String name) {
+        if (metrics != null) {
+            return;
+        }
+        for (Platform platform : platformsById.values()) {
+            platform.setLockStats(new LockStats());
+        }
+        metrics = new SchedulerMetrics();
+        try {
+            metricsName = new ObjectName("TrainScheduler:type=Metrics,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    new StandardMBean(new MetricsBean(), MetricsMXBean.class, true), metricsName);
+        } catch (JMException e) {
+            metricsName = null;
+            throw new IllegalStateException("Could not register metrics MXBean", e);
+        }
+    }
+
+    public synchronized void disableMetrics() {
+        if (metrics == null) {
+            return;
+        }
+        metrics = null;
+        for (Platform platform : platformsById.values()) {
+            platform.setLockStats(null);
+        }
+        if (metricsName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+            } catch (JMException e) {
+                // Already gone
+            }
+            metricsName = null;
+        }
+    }
+
+    // Null while metrics are disabled
+    public MetricsSnapshot getMetricsSnapshot() {
+        SchedulerMetrics current = metrics;
+        if (current == null) {
+            return null;
+        }
+        return new MetricsSnapshot(current, platformsById.values(), reclaimedReservations.get(), admitted.size(), runner.getActiveRuns());
+    }
+
+    public interface MetricsMXBean {
+        long getAdmissions();
+
+        long getAdmissionP50Micros();
+
+        long getAdmissionP99Micros();
+
+        long getAdmissionP999Micros();
+
+        long getCancellations();
+
+        long getCancellationP99Micros();
+
+        Map<String, Long> getRejections();
+
+        long getLiveReservations();
+
+        long getReclaimedReservations();
+
+        long getAdmittedSchedules();
+
+        int getActiveRuns();
+
+        long getLockWaitMicros();
+
+        long getLockHoldMicros();
+
+        Map<String, Long> getLockWaitMicrosByPlatform();
+    }
+
+    private class MetricsBean implements MetricsMXBean {
+        private MetricsSnapshot snapshot() {
+            MetricsSnapshot snapshot = getMetricsSnapshot();
+            if (snapshot == null) {
+                throw new IllegalStateException("Metrics are disabled");
+            }
+            return snapshot;
+        }
+
+        public long getAdmissions() {
+            return snapshot().getAdmissions();
+        }
+
+        public long getAdmissionP50Micros() {
+            return snapshot().getAdmissionNanos()[1] / 1000;
+        }
+
+        public long getAdmissionP99Micros() {
+            return snapshot().getAdmissionNanos()[2] / 1000;
+        }
+
+        public long getAdmissionP999Micros() {
+            return snapshot().getAdmissionNanos()[3] / 1000;
+        }
+
+        public long getCancellations() {
+            return snapshot().getCancellations();
+        }
+
+        public long getCancellationP99Micros() {
+            return snapshot().getCancellationNanos()[2] / 1000;
+        }
+
+        public Map<String, Long> getRejections() {
+            Map<String, Long> rejections = new TreeMap<>();
+            for (Map.Entry<RejectionReason, Long> entry : snapshot().getRejections().entrySet()) {
+                rejections.put(entry.getKey().name(), entry.getValue());
+            }
+            return rejections;
+        }
+
+        public long getLiveReservations() {
+            return snapshot().getLiveReservations();
+        }
+
+        public long getReclaimedReservations() {
+            return snapshot().getReclaimedReservations();
+        }
+
+        public long getAdmittedSchedules() {
+            return snapshot().getAdmittedSchedules();
+        }
+
+        public int getActiveRuns() {
+            return snapshot().getActiveRuns();
+        }
+
+        public long getLockWaitMicros() {
+            long total = 0;
+            for (long[] stats : snapshot().getPlatformLocks().values()) {
+                total += stats[1];
+            }
+            return total / 1000;
+        }
+
+        public long getLockHoldMicros() {
+            long total = 0;
+            for (long[] stats : snapshot().getPlatformLocks().values()) {
+                total += stats[2];
+            }
+            return total / 1000;
+        }
+
+        public Map<String, Long> getLockWaitMicrosByPlatform() {
+            Map<String, Long> waits = new TreeMap<>();
+            for (Map.Entry<String, long[]> entry : snapshot().getPlatformLocks().entrySet()) {
+                waits.put(entry.getKey(), entry.getValue()[1] / 1000);
+            }
+            return waits;
+        }
+    }
+
+    public void shutdown() {
+        disableMetrics();
+        stopRetention();
+        try {
+            stopCheckpoints();
+        } finally {
+            runner.shutdown();
+            events.close();
+        }
+    }
+
+    public static void main(String[] args) {
+        TrainScheduler scheduler = new TrainScheduler();
+        Station stationA = new Station("Station A", 2);
+        scheduler.addStation(stationA);
+
+        LocalDateTime now = scheduler.getClock().now();
+        LocalDateTime arrivalTime = now.plusMinutes(1);
+        LocalDateTime departureTime = now.plusMinutes(2);
+
+        ScheduleEntry entry = new ScheduleEntry(stationA, 1, arrivalTime, departureTime);
+        List<ScheduleEntry> entries = new ArrayList<>();
+        entries.add(entry);
+
+        TrainSchedule schedule = new TrainSchedule("T123", entries);
+        boolean added = scheduler.addTrainSchedule(schedule);
+        System.out.println("Schedule added: " + added);
 
         try {
             Thread.sleep(120000);
@@ -307,3 +3673,758 @@ public class TrainScheduler {
         }
     }
 }
+
+/*
+ * Repeatable micro-benchmark for admission and cancellation. Parameters are key=value arguments:
+ *
+ *     platforms=4 reservations=1000 stops=5 threads=<cores> conflicts=0.1 ops=20000
+ *     warmup=2 iterations=5 mode=both|PESSIMISTIC|OPTIMISTIC
+ *
+ * Each iteration builds a fresh network, pre-fills every platform with the given number of
+ * reservations, then times admissions from concurrent submitters and the cancellation of everything
+ * they admitted. A share of the submitted schedules deliberately hits a pre-filled slot and is
+ * rejected. Runs use a discrete-event clock, so no train events fire, and cancellation events go to a
+ * pipeline without sinks. Reports throughput and p50/p99/p99.9 latency per operation.
+ */
+class SchedulerBenchmark {
+    private static final LocalDateTime DAY = LocalDateTime.of(2024, 1, 1, 0, 0);
+    private static final Duration SLOT = Duration.ofMinutes(10);
+
+    private int platforms = 4;
+    private int reservations = 1000;
+    private int stops = 5;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private double conflicts = 0.1;
+    private int ops = 20000;
+    private int warmup = 2;
+    private int iterations = 5;
+
+    public static void main(String[] args) throws InterruptedException {
+        SchedulerBenchmark benchmark = new SchedulerBenchmark();
+        List<AdmissionMode> modes = new ArrayList<>(Arrays.asList(AdmissionMode.values()));
+        for (String arg : args) {
+            String[] pair = arg.split("=", 2);
+            switch (pair[0]) {
+                case "platforms": benchmark.platforms = Integer.parseInt(pair[1]); break;
+                case "reservations": benchmark.reservations = Integer.parseInt(pair[1]); break;
+                case "stops": benchmark.stops = Integer.parseInt(pair[1]); break;
+                case "threads": benchmark.threads = Integer.parseInt(pair[1]); break;
+                case "conflicts": benchmark.conflicts = Double.parseDouble(pair[1]); break;
+                case "ops": benchmark.ops = Integer.parseInt(pair[1]); break;
+                case "warmup": benchmark.warmup = Integer.parseInt(pair[1]); break;
+                case "iterations": benchmark.iterations = Integer.parseInt(pair[1]); break;
+                case "mode":
+                    if (!pair[1].equals("both")) {
+                        modes = Collections.singletonList(AdmissionMode.valueOf(pair[1]));
+                    }
+                    break;
+                default: throw new IllegalArgumentException("Unknown parameter " + pair[0]);
+            }
+        }
+
+        System.out.printf("platforms=%d reservations=%d stops=%d threads=%d conflicts=%.2f ops=%d%n",
+                benchmark.platforms, benchmark.reservations, benchmark.stops, benchmark.threads, benchmark.conflicts, benchmark.ops);
+        for (AdmissionMode mode : modes) {
+            for (int i = 0; i < benchmark.warmup; i++) {
+                benchmark.iteration(mode);
+            }
+            Result admit = new Result();
+            Result cancel = new Result();
+            for (int i = 0; i < benchmark.iterations; i++) {
+                Result[] results = benchmark.iteration(mode);
+                admit.add(results[0]);
+                cancel.add(results[1]);
+            }
+            admit.print(mode + " admit");
+            cancel.print(mode + " cancel");
+        }
+    }
+
+    private Result[] iteration(AdmissionMode mode) throws InterruptedException {
+        // No sinks: cancellations still publish their events, but nothing is printed
+        TrainScheduler scheduler = new TrainScheduler(new EventLoopRunner(new DiscreteEventClock(DAY)), new TrainEventPipeline());
+        scheduler.setAdmissionMode(mode);
+        List<Station> network = new ArrayList<>();
+        List<TrainSchedule> prefill = new ArrayList<>();
+        for (int i = 0; i < stops; i++) {
+            Station station = new Station("Bench " + i, platforms);
+            network.add(station);
+            scheduler.addStation(station);
+            for (int p = 1; p <= platforms; p++) {
+                for (int r = 0; r < reservations; r++) {
+                    LocalDateTime start = DAY.plus(SLOT.multipliedBy(r));
+                    prefill.add(new TrainSchedule("P", List.of(new ScheduleEntry(station, p, start, start.plus(SLOT.dividedBy(2))))));
+                }
+            }
+        }
+        scheduler.addTrainSchedules(prefill);
+
+        AtomicInteger nextFreeSlot = new AtomicInteger(reservations);
+        List<List<TrainSchedule>> admitted = new ArrayList<>();
+        long[][] admitLatencies = new long[threads][];
+        long[][] cancelLatencies = new long[threads][];
+        try {
+            long admitNanos = timed(threads, t -> {
+                Random random = new Random(t);
+                int count = ops / threads;
+                List<TrainSchedule> mine = new ArrayList<>();
+                long[] latencies = new long[count];
+                for (int i = 0; i < count; i++) {
+                    TrainSchedule schedule = schedule(network, random, nextFreeSlot);
+                    long started = System.nanoTime();
+                    boolean accepted = scheduler.addTrainSchedule(schedule);
+                    latencies[i] = System.nanoTime() - started;
+                    if (accepted) {
+                        mine.add(schedule);
+                    }
+                }
+                admitLatencies[t] = latencies;
+                synchronized (admitted) {
+                    admitted.add(mine);
+                }
+            });
+            long cancelNanos = timed(admitted.size(), t -> {
+                List<TrainSchedule> mine = admitted.get(t);
+                long[] latencies = new long[mine.size()];
+                for (int i = 0; i < mine.size(); i++) {
+                    long started = System.nanoTime();
+                    scheduler.cancelTrainSchedule(mine.get(i));
+                    latencies[i] = System.nanoTime() - started;
+                }
+                cancelLatencies[t] = latencies;
+            });
+            return new Result[] {new Result(admitNanos, admitLatencies), new Result(cancelNanos, cancelLatencies)};
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    // A conflicting schedule lands its first stop on a pre-filled slot; the others use slots nobody else gets
+    private TrainSchedule schedule(List<Station> network, Random random, AtomicInteger nextFreeSlot) {
+        boolean conflicting = random.nextDouble() < conflicts;
+        List<ScheduleEntry> entries = new ArrayList<>(stops);
+        int slot = conflicting ? random.nextInt(Math.max(reservations, 1)) : nextFreeSlot.getAndIncrement();
+        for (int i = 0; i < stops; i++) {
+            LocalDateTime start = DAY.plus(SLOT.multipliedBy(slot)).plusMinutes(i);
+            entries.add(new ScheduleEntry(network.get(i), 1 + random.nextInt(platforms), start, start.plusSeconds(30)));
+        }
+        return new TrainSchedule("B", entries);
+    }
+
+    private static long timed(int threadCount, IntConsumer body) throws InterruptedException {
+        Thread[] workers = new Thread[threadCount];
+        CountDownLatch start = new CountDownLatch(1);
+        for (int t = 0; t < threadCount; t++) {
+            int id = t;
+            workers[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                body.accept(id);
+            });
+            workers[t].start();
+        }
+        long started = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return System.nanoTime() - started;
+    }
+
+    private static class Result {
+        private long nanos;
+        private long operations;
+        private List<long[]> latencies = new ArrayList<>();
+
+        Result() {
+        }
+
+        Result(long nanos, long[][] perThread) {
+            this.nanos = nanos;
+            for (long[] latency : perThread) {
+                if (latency != null) {
+                    latencies.add(latency);
+                    operations += latency.length;
+                }
+            }
+        }
+
+        void add(Result other) {
+            nanos += other.nanos;
+            operations += other.operations;
+            latencies.addAll(other.latencies);
+        }
+
+        void print(String label) {
+            long[] all = new long[(int) operations];
+            int position = 0;
+            for (long[] latency : latencies) {
+                System.arraycopy(latency, 0, all, position, latency.length);
+                position += latency.length;
+            }
+            Arrays.sort(all);
+            System.out.printf("%-19s %10.0f ops/s  p50=%6.1fus p99=%7.1fus p99.9=%8.1fus%n", label,
+                    operations * 1e9 / Math.max(nanos, 1), percentile(all, 0.5), percentile(all, 0.99), percentile(all, 0.999));
+        }
+
+        private static double percentile(long[] sorted, double quantile) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            return sorted[(int) Math.min(sorted.length - 1, Math.ceil(quantile * sorted.length) - 1)] / 1000.0;
+        }
+    }
+}
+
+/*
+ * Soak test: concurrent admissions, cancellations and queries against a synthetic network for a
+ * fixed time, while a checker keeps verifying that no platform holds overlapping reservations.
+ * Parameters are key=value arguments:
+ *
+ *     stations=32 platforms=4 stops=4 slots=2000 threads=<cores> seconds=10 mix=50:25:25
+ *     flexible=0.1 mode=PESSIMISTIC|OPTIMISTIC shards=0 check=100 metrics=false
+ *
+ * mix weighs admit:cancel:query. Schedules call at consecutive stations in one of the given
+ * number of time slots, so fewer slots means more conflicts. Cancellations pick from recent
+ * admissions of any thread, so threads race to cancel the same schedule. shards above zero admits
+ * through a ShardedDispatcher. Reports ops/s and p50/p99/p99.9 per operation and exits with status 1
+ * if the checker found an overlap or the reservation count drifted from the admitted schedules.
+ */
+class SchedulerSoak {
+    private static final LocalDateTime DAY = LocalDateTime.of(2024, 1, 1, 0, 0);
+    private static final Duration SLOT = Duration.ofMinutes(5);
+    private static final Duration DWELL = Duration.ofMinutes(2);
+    private static final int RECENT = 1 << 12;
+
+    private int stations = 32;
+    private int platforms = 4;
+    private int stops = 4;
+    private int slots = 2000;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int seconds = 10;
+    private int[] mix = {50, 25, 25};
+    private double flexible = 0.1;
+    private AdmissionMode mode = AdmissionMode.PESSIMISTIC;
+    private int shards;
+    private int checkMillis = 100;
+    private boolean metrics;
+
+    private TrainScheduler scheduler;
+    private ShardedDispatcher sharded;
+    private List<Station> network = new ArrayList<>();
+    private AtomicReferenceArray<TrainSchedule> recent = new AtomicReferenceArray<>(RECENT);
+    private AtomicLong nextTrain = new AtomicLong();
+    private volatile boolean running = true;
+    private AtomicLong checks = new AtomicLong();
+    private AtomicReference<String> violation = new AtomicReference<>();
+
+    public static void main(String[] args) throws InterruptedException {
+        SchedulerSoak soak = new SchedulerSoak();
+        for (String arg : args) {
+            String[] pair = arg.split("=", 2);
+            switch (pair[0]) {
+                case "stations": soak.stations = Integer.parseInt(pair[1]); break;
+                case "platforms": soak.platforms = Integer.parseInt(pair[1]); break;
+                case "stops": soak.stops = Integer.parseInt(pair[1]); break;
+                case "slots": soak.slots = Integer.parseInt(pair[1]); break;
+                case "threads": soak.threads = Integer.parseInt(pair[1]); break;
+                case "seconds": soak.seconds = Integer.parseInt(pair[1]); break;
+                case "mix":
+                    String[] weights = pair[1].split(":");
+                    for (int i = 0; i < 3; i++) {
+                        soak.mix[i] = Integer.parseInt(weights[i]);
+                    }
+                    break;
+                case "flexible": soak.flexible = Double.parseDouble(pair[1]); break;
+                case "mode": soak.mode = AdmissionMode.valueOf(pair[1]); break;
+                case "shards": soak.shards = Integer.parseInt(pair[1]); break;
+                case "check": soak.checkMillis = Integer.parseInt(pair[1]); break;
+                case "metrics": soak.metrics = Boolean.parseBoolean(pair[1]); break;
+                default: throw new IllegalArgumentException("Unknown parameter " + pair[0]);
+            }
+        }
+        System.out.printf("stations=%d platforms=%d stops=%d slots=%d threads=%d seconds=%d mix=%d:%d:%d flexible=%.2f mode=%s shards=%d%n",
+                soak.stations, soak.platforms, soak.stops, soak.slots, soak.threads, soak.seconds,
+                soak.mix[0], soak.mix[1], soak.mix[2], soak.flexible, soak.mode, soak.shards);
+        if (!soak.run()) {
+            System.exit(1);
+        }
+    }
+
+    // True if every invariant held
+    public boolean run() throws InterruptedException {
+        scheduler = new TrainScheduler(new EventLoopRunner(new DiscreteEventClock(DAY)), new TrainEventPipeline());
+        scheduler.setAdmissionMode(mode);
+        for (int i = 0; i < stations; i++) {
+            Station station = new Station("Soak " + i, platforms);
+            network.add(station);
+            scheduler.addStation(station);
+        }
+        if (shards > 0) {
+            sharded = new ShardedDispatcher(scheduler, shards);
+            // Neighbouring stations share a shard, so only schedules crossing a boundary span shards
+            for (int i = 0; i < stations; i++) {
+                sharded.assign(network.get(i), (int) ((long) i * shards / stations));
+            }
+        }
+        if (metrics) {
+            scheduler.enableMetrics("soak");
+        }
+
+        Worker[] workers = new Worker[threads];
+        Thread[] workerThreads = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Worker(t);
+            workerThreads[t] = new Thread(workers[t], "soak-" + t);
+        }
+        Thread checker = new Thread(this::checkContinuously, "soak-checker");
+        long started = System.nanoTime();
+        for (Thread thread : workerThreads) {
+            thread.start();
+        }
+        checker.start();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+        running = false;
+        for (Thread thread : workerThreads) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - started;
+        checker.join();
+        checkOverlaps();
+        checkCounts();
+
+        String[] labels = {"admit", "cancel", "query"};
+        for (int op = 0; op < 3; op++) {
+            LatencyHistogram total = new LatencyHistogram();
+            for (Worker worker : workers) {
+                total.add(worker.latencies[op]);
+            }
+            System.out.printf("%-7s %10.0f ops/s  p50=%7.1fus p99=%8.1fus p99.9=%9.1fus max=%9.1fus%n", labels[op],
+                    total.getCount() * 1e9 / elapsed, total.getPercentileNanos(0.5) / 1000.0,
+                    total.getPercentileNanos(0.99) / 1000.0, total.getPercentileNanos(0.999) / 1000.0, total.getMaxNanos() / 1000.0);
+        }
+        long accepted = 0;
+        long cancelled = 0;
+        long missed = 0;
+        for (Worker worker : workers) {
+            accepted += worker.accepted;
+            cancelled += worker.cancelled;
+            missed += worker.missed;
+        }
+        // A cancel that lost its race must not have removed anything
+        if (accepted - cancelled != scheduler.getTrainSchedules().size()) {
+            violation.compareAndSet(null, accepted + " admitted and " + cancelled + " cancelled, but "
+                    + scheduler.getTrainSchedules().size() + " still live");
+        }
+        System.out.printf("accepted=%d rejected=%d cancelled=%d lostRaces=%d live=%d checks=%d%n", accepted,
+                attempts(workers, 0) - accepted, cancelled, missed,
+                scheduler.getTrainSchedules().size(), checks.get());
+        if (metrics) {
+            System.out.println(scheduler.getMetricsSnapshot());
+        }
+        if (sharded != null) {
+            System.out.println("crossShard=" + sharded.getCrossShardAdmissions());
+            sharded.close();
+        }
+        scheduler.shutdown();
+
+        String problem = violation.get();
+        System.out.println(problem == null ? "OK" : "FAILED: " + problem);
+        return problem == null;
+    }
+
+    private static long attempts(Worker[] workers, int op) {
+        long total = 0;
+        for (Worker worker : workers) {
+            total += worker.latencies[op].getCount();
+        }
+        return total;
+    }
+
+    private void checkContinuously() {
+        while (running) {
+            checkOverlaps();
+            try {
+                Thread.sleep(checkMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // Each copy is taken at one consistent version of its platform
+    private void checkOverlaps() {
+        for (Station station : network) {
+            for (Platform platform : station.getPlatforms()) {
+                TimeInterval previous = null;
+                for (TimeInterval interval : platform.getReservations()) {
+                    if (previous != null && previous.getEnd().isAfter(interval.getStart())) {
+                        violation.compareAndSet(null, station.getName() + " Platform " + platform.getNumber() + ": train "
+                                + previous.getSchedule().getTrainId() + " until " + previous.getEnd() + " overlaps train "
+                                + interval.getSchedule().getTrainId() + " from " + interval.getStart());
+                    }
+                    previous = interval;
+                }
+            }
+        }
+        checks.incrementAndGet();
+    }
+
+    // Once quiet, the platforms must hold exactly the stops of the admitted schedules
+    private void checkCounts() {
+        long expected = 0;
+        for (TrainSchedule schedule : scheduler.getTrainSchedules()) {
+            expected += schedule.getEntries().size();
+        }
+        long live = scheduler.getLiveReservationCount();
+        if (live != expected) {
+            violation.compareAndSet(null, live + " reservations held for " + expected + " admitted stops");
+        }
+    }
+
+    private class Worker implements Runnable {
+        private Random random;
+        private LatencyHistogram[] latencies = {new LatencyHistogram(), new LatencyHistogram(), new LatencyHistogram()};
+        private long accepted;
+        private long cancelled;
+        private long missed;
+
+        Worker(int id) {
+            this.random = new Random(id);
+        }
+
+        @Override
+        public void run() {
+            int totalWeight = mix[0] + mix[1] + mix[2];
+            while (running) {
+                int pick = random.nextInt(totalWeight);
+                int op = pick < mix[0] ? 0 : pick < mix[0] + mix[1] ? 1 : 2;
+                long started = System.nanoTime();
+                switch (op) {
+                    case 0: admit(); break;
+                    case 1: cancel(); break;
+                    default: query(); break;
+                }
+                latencies[op].record(System.nanoTime() - started);
+            }
+        }
+
+        private void admit() {
+            int first = random.nextInt(stations);
+            LocalDateTime time = DAY.plus(SLOT.multipliedBy(random.nextInt(slots)));
+            List<ScheduleEntry> entries = new ArrayList<>(stops);
+            for (int i = 0; i < stops; i++) {
+                Station station = network.get((first + i) % stations);
+                int platform = random.nextDouble() < flexible ? ScheduleEntry.ANY_PLATFORM : 1 + random.nextInt(platforms);
+                entries.add(new ScheduleEntry(station, platform, time, time.plus(DWELL)));
+                time = time.plus(SLOT);
+            }
+            TrainSchedule schedule = new TrainSchedule("S" + nextTrain.incrementAndGet(), entries);
+            ReservationHandle handle = sharded != null ? sharded.admit(schedule) : scheduler.admitTrainSchedule(schedule);
+            if (handle != null) {
+                accepted++;
+                recent.set(random.nextInt(RECENT), schedule);
+            }
+        }
+
+        private void cancel() {
+            int slot = random.nextInt(RECENT);
+            TrainSchedule schedule = recent.get(slot);
+            if (schedule == null) {
+                return;
+            }
+            // Another thread may be cancelling the same schedule right now; exactly one of them must win
+            boolean won = scheduler.cancelTrainSchedule(schedule);
+            recent.compareAndSet(slot, schedule, null);
+            if (won) {
+                cancelled++;
+            } else {
+                missed++;
+            }
+        }
+
+        private void query() {
+            Station station = network.get(random.nextInt(stations));
+            LocalDateTime time = DAY.plus(SLOT.multipliedBy(random.nextInt(slots)));
+            switch (random.nextInt(3)) {
+                case 0:
+                    scheduler.findFreePlatforms(station.getName(), time, time.plus(DWELL));
+                    break;
+                case 1:
+                    scheduler.findEarliestWindow(station.getName(), 1 + random.nextInt(platforms), time, DWELL);
+                    break;
+                default:
+                    station.getPlatform(1 + random.nextInt(platforms)).isFree(time, time.plus(DWELL));
+                    break;
+            }
+        }
+    }
+}
+
+/*
+ * Checks for the failure paths the soak cannot reach: recovering a journal whose tail was torn,
+ * truncated or left without its snapshot, names too long to journal, import workers that fail and overlapping reservations.
+ * Prints one line per check and exits with status 1 if any failed.
+ */
+class SchedulerChecks {
+    private static final LocalDateTime DAY = LocalDateTime.of(2024, 1, 1, 0, 0);
+    private static final String STATION = "Check";
+
+    private int failures;
+
+    public static void main(String[] args) throws Exception {
+        SchedulerChecks checks = new SchedulerChecks();
+        checks.tornJournalTail();
+        checks.truncatedJournal();
+        checks.epochMismatch();
+        checks.overlongNames();
+        checks.importerFailure();
+        checks.overlapRejection();
+        System.out.println(checks.failures == 0 ? "OK" : "FAILED: " + checks.failures + " checks");
+        if (checks.failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    private void check(String name, boolean passed) {
+        System.out.println((passed ? "PASS " : "FAIL ") + name);
+        if (!passed) {
+            failures++;
+        }
+    }
+
+    // Pages can reach the disk out of order, leaving a whole record behind a torn one
+    private void tornJournalTail() throws IOException {
+        Path directory = writeJournal(10);
+        List<Integer> offsets = frameOffsets(directory.resolve("journal.bin"));
+        int torn = offsets.get(offsets.size() - 3);
+        try (FileChannel channel = FileChannel.open(directory.resolve("journal.bin"), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(4).putInt(0, 0x1234), torn + 4);
+        }
+        List<String> recovered = recover(directory, null);
+        check("replay stops at a torn record", recovered.size() == 8 && !recovered.contains("T9"));
+        // A record the same size as the torn one must not bring back the one after it
+        recover(directory, "X8");
+        recovered = recover(directory, null);
+        check("records past a torn one stay dropped after new appends",
+                recovered.size() == 9 && recovered.contains("X8") && !recovered.contains("T9"));
+    }
+
+    private void truncatedJournal() throws IOException {
+        Path directory = writeJournal(10);
+        List<Integer> offsets = frameOffsets(directory.resolve("journal.bin"));
+        int last = offsets.get(offsets.size() - 2);
+        try (FileChannel channel = FileChannel.open(directory.resolve("journal.bin"), StandardOpenOption.WRITE)) {
+            channel.truncate(last + 8 + 3);
+        }
+        List<String> recovered = recover(directory, null);
+        check("truncated journal replays up to its last whole record",
+                recovered.size() == 9 && !recovered.contains("T9"));
+    }
+
+    // A journal written after a checkpoint means nothing without that checkpoint's snapshot
+    private void epochMismatch() throws IOException {
+        Path directory = Files.createTempDirectory("journal-check");
+        Path snapshot = directory.resolve("snapshot.bin");
+        Path stale = directory.resolve("stale.bin");
+        TrainScheduler scheduler = newScheduler();
+        try (ReservationJournal journal = new ReservationJournal(directory, Duration.ofSeconds(1))) {
+            scheduler.recoverFrom(journal);
+            Station station = new Station(STATION, 1);
+            scheduler.addStation(station);
+            scheduler.addTrainSchedule(schedule("T0", station, 0));
+            scheduler.checkpoint();
+            Files.copy(snapshot, stale);
+            scheduler.addTrainSchedule(schedule("T1", station, 1));
+            scheduler.checkpoint();
+            scheduler.addTrainSchedule(schedule("T2", station, 2));
+        } finally {
+            scheduler.shutdown();
+        }
+        check("checkpointed journal replays on its snapshot", recover(directory, null).size() == 3);
+
+        Files.move(stale, snapshot, StandardCopyOption.REPLACE_EXISTING);
+        check("journal with a stale snapshot is refused", recoveryFails(directory));
+        Files.delete(snapshot);
+        check("journal with no snapshot is refused", recoveryFails(directory));
+    }
+
+    // A name the journal cannot store must be refused before anything changes
+    private void overlongNames() throws IOException {
+        Path directory = Files.createTempDirectory("journal-check");
+        String tooLong = "x".repeat(0x10000);
+        TrainScheduler scheduler = newScheduler();
+        try (ReservationJournal journal = new ReservationJournal(directory, Duration.ofSeconds(1))) {
+            scheduler.recoverFrom(journal);
+            Station station = new Station(STATION, 1);
+            scheduler.addStation(station);
+            check("over-long station name is rejected",
+                    rejects(() -> scheduler.addStation(new Station(tooLong, 1))) && scheduler.getStation(tooLong) == null);
+            check("over-long train id is rejected",
+                    rejects(() -> scheduler.admitTrainSchedule(schedule(tooLong, station, 0)))
+                            && scheduler.getLiveReservationCount() == 0);
+            List<TrainSchedule> batch = List.of(schedule("T0", station, 0), schedule(tooLong, station, 1));
+            check("batch holding an over-long train id is rejected whole",
+                    rejects(() -> scheduler.addTrainSchedules(batch)) && scheduler.getLiveReservationCount() == 0);
+            scheduler.addTrainSchedule(schedule("T0", station, 0));
+        } finally {
+            scheduler.shutdown();
+        }
+        check("journal still replays after rejected names", recover(directory, null).equals(List.of("T0")));
+    }
+
+    // A batch that fails in a worker must fail the import, however many batches follow it
+    private void importerFailure() throws IOException, InterruptedException {
+        TrainScheduler scheduler = new TrainScheduler(new EventLoopRunner(new DiscreteEventClock(DAY))) {
+            private AtomicInteger batches = new AtomicInteger();
+
+            @Override
+            public BatchAdmissionResult addTrainSchedules(Collection<TrainSchedule> schedules) {
+                if (batches.getAndIncrement() == 0) {
+                    throw new IllegalStateException("first batch failed");
+                }
+                return super.addTrainSchedules(schedules);
+            }
+        };
+        StringBuilder stopTimes = new StringBuilder();
+        for (int train = 0; train < 3000; train++) {
+            for (int stop = 0; stop < 10; stop++) {
+                stopTimes.append("T").append(train).append(",S").append(stop).append(',').append(stop + 1)
+                        .append(",08:0").append(stop).append(",08:0").append(stop).append('\n');
+            }
+        }
+        Throwable failure = null;
+        try {
+            new TimetableImporter(scheduler, DAY.toLocalDate()).setDefaultPlatformCount(30)
+                    .importFrom(new StringReader(stopTimes.toString()));
+        } catch (IllegalStateException e) {
+            failure = e;
+        } finally {
+            scheduler.shutdown();
+        }
+        check("worker failure propagates out of the import", failure != null
+                && failure.getCause() != null && "first batch failed".equals(failure.getCause().getMessage()));
+    }
+
+    // Every admission mode must refuse a stop that overlaps another, including one of the same train
+    private void overlapRejection() {
+        LocalDateTime start = DAY.plusHours(8);
+        for (AdmissionMode mode : AdmissionMode.values()) {
+            TrainScheduler scheduler = newScheduler();
+            scheduler.setAdmissionMode(mode);
+            Station station = new Station(STATION, 2);
+            scheduler.addStation(station);
+            TrainSchedule selfOverlapping = new TrainSchedule("A", List.of(
+                    new ScheduleEntry(station, 1, start, start.plusHours(2)),
+                    new ScheduleEntry(station, 1, start.plusMinutes(10), start.plusMinutes(20))));
+            TrainSchedule touching = new TrainSchedule("B", List.of(
+                    new ScheduleEntry(station, 1, start, start.plusMinutes(5)),
+                    new ScheduleEntry(station, 1, start.plusMinutes(5), start.plusMinutes(20))));
+            TrainSchedule conflicting = new TrainSchedule("C", List.of(
+                    new ScheduleEntry(station, 1, start.plusMinutes(15), start.plusMinutes(25))));
+            check(mode + " rejects a schedule overlapping itself", !scheduler.addTrainSchedule(selfOverlapping)
+                    && scheduler.getLiveReservationCount() == 0);
+            check(mode + " accepts stops that only touch", scheduler.addTrainSchedule(touching));
+            check(mode + " rejects a schedule overlapping another", !scheduler.addTrainSchedule(conflicting)
+                    && scheduler.getLiveReservationCount() == 2);
+            scheduler.shutdown();
+        }
+
+        Platform platform = new Station(STATION, 1).getPlatform(1);
+        TrainSchedule first = new TrainSchedule("A", List.of());
+        TrainSchedule second = new TrainSchedule("B", List.of());
+        platform.lock();
+        try {
+            platform.addReservation(new TimeInterval(start, start.plusMinutes(10), first));
+            check("platform refuses an overlapping reservation",
+                    rejects(() -> platform.addReservation(new TimeInterval(start.plusMinutes(5), start.plusMinutes(15), second)))
+                            && platform.getReservationCount() == 1);
+        } finally {
+            platform.unlock();
+        }
+    }
+
+    private static boolean rejects(Runnable action) {
+        try {
+            action.run();
+            return false;
+        } catch (IllegalArgumentException e) {
+            return true;
+        }
+    }
+
+    private static boolean recoveryFails(Path directory) {
+        try {
+            recover(directory, null);
+            return false;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    private static TrainScheduler newScheduler() {
+        return new TrainScheduler(new EventLoopRunner(new DiscreteEventClock(DAY)));
+    }
+
+    private static TrainSchedule schedule(String trainId, Station station, int hour) {
+        LocalDateTime arrival = DAY.plusHours(hour);
+        return new TrainSchedule(trainId, List.of(new ScheduleEntry(station, 1, arrival, arrival.plusMinutes(5))));
+    }
+
+    // A fresh journal holding trains T0 to T(count - 1), one an hour
+    private static Path writeJournal(int count) throws IOException {
+        Path directory = Files.createTempDirectory("journal-check");
+        TrainScheduler scheduler = newScheduler();
+        try (ReservationJournal journal = new ReservationJournal(directory, Duration.ofSeconds(1))) {
+            scheduler.recoverFrom(journal);
+            Station station = new Station(STATION, 1);
+            scheduler.addStation(station);
+            for (int i = 0; i < count; i++) {
+                scheduler.addTrainSchedule(schedule("T" + i, station, i));
+            }
+        } finally {
+            scheduler.shutdown();
+        }
+        return directory;
+    }
+
+    // Train ids recovered from the directory, after admitting one more train if one is given
+    private static List<String> recover(Path directory, String admit) throws IOException {
+        TrainScheduler scheduler = newScheduler();
+        try (ReservationJournal journal = new ReservationJournal(directory, Duration.ofSeconds(1))) {
+            int recovered = scheduler.recoverFrom(journal);
+            if (admit != null) {
+                scheduler.addTrainSchedule(schedule(admit, scheduler.getStation(STATION), recovered));
+            }
+            List<String> trainIds = new ArrayList<>();
+            for (TrainSchedule schedule : scheduler.getTrainSchedules()) {
+                trainIds.add(schedule.getTrainId());
+            }
+            return trainIds;
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    // Start of each record in a closed journal, then the offset just past the last one
+    private static List<Integer> frameOffsets(Path journal) throws IOException {
+        List<Integer> offsets = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(journal, StandardOpenOption.READ)) {
+            ByteBuffer length = ByteBuffer.allocate(4);
+            int offset = 12;
+            while (true) {
+                length.clear();
+                if (channel.read(length, offset) < 4 || length.getInt(0) <= 0) {
+                    break;
+                }
+                offsets.add(offset);
+                offset += 8 + length.getInt(0);
+            }
+            offsets.add(offset);
+        }
+        return offsets;
+    }
+}